@@ -0,0 +1,21 @@
+import tetris.jmh.Workload;
+
+/**
+ * Adapter from the JMH benchmarks (see tetris.jmh.Workload) to the
+ * operations of Benchmark, which are the ones measured.
+ */
+public class JmhWorkload implements Workload {
+	private Benchmark.Operation op;
+
+	public void setup(String name, String param) {
+		op = Benchmark.operation(name, param);
+	}
+
+	public long run() {
+		return op.run();
+	}
+
+	public void tearDown() {
+		op.done();
+	}
+}
@@ -0,0 +1,53 @@
+package tetris.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluation of a generation of short games on the worker pool and on
+ * virtual threads (the -executors benchmarks of Benchmark). The virtual
+ * ones need Java 21: before it, their setup fails and JMH skips them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Executors {
+	@Param({"1000", "10000", "100000"})
+	public int population;
+
+	@Param({"pool", "virtual"})
+	public String executor;
+
+	private Workload workload;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		workload = Workload.load("evaluate", "population=" + population + ",executor=" + executor);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		workload.tearDown();
+	}
+
+	@Benchmark
+	public long evaluate() {
+		return workload.run();
+	}
+}
@@ -0,0 +1,50 @@
+package tetris.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One generation of the genetic algorithm: evaluate, select, combine and
+ * mutate. The same population is evaluated every time, so that iterations
+ * do not get slower as the individuals get better.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Generation {
+	@Param({"50", "100", "200"})
+	public int population;
+
+	private Workload workload;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		workload = Workload.load("genetic.generation", "population=" + population);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		workload.tearDown();
+	}
+
+	@Benchmark
+	public long generation() {
+		return workload.run();
+	}
+}
@@ -0,0 +1,52 @@
+package tetris.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hot paths of the player: making a move, testing and scoring the moves of
+ * a piece on mid-game boards, the two-piece search and a full game. Every
+ * operation runs in forked JVMs, so the profile of one does not pollute the
+ * code compiled for the others.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class HotPaths {
+	@Param({"State.makeMove", "StateEx.dryRunMove", "StateEx.testMove", "StateEx.scoreMoves",
+			"StateEx.testMoveFull", "StateEx.getHoles", "Lookahead.bestMove", "Individual.play"})
+	public String operation;
+
+	private Workload workload;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		workload = Workload.load(operation, null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		workload.tearDown();
+	}
+
+	@Benchmark
+	public long run() {
+		return workload.run();
+	}
+}
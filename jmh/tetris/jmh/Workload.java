@@ -0,0 +1,31 @@
+package tetris.jmh;
+
+/**
+ * One of the operations measured by the benchmarks. The operations are the
+ * ones of the single-JVM harness (Benchmark.operation), so that both suites
+ * run the same code. The player is in the default package, which a JMH
+ * benchmark (always in a package) cannot reference, so they are reached
+ * through JmhWorkload, in the default package, loaded by name. Every call
+ * to run performs one operation and returns something derived from its
+ * result, which JMH consumes.
+ */
+public interface Workload {
+	/* Prepare the operation with the given name and parameters (null for
+	 * the first one with that name). */
+	void setup(String name, String param);
+
+	long run();
+
+	/* Called once the operation has been measured. */
+	void tearDown();
+
+	static Workload load(String name, String param) {
+		try {
+			Workload w = (Workload) Class.forName("JmhWorkload").getDeclaredConstructor().newInstance();
+			w.setup(name, param);
+			return w;
+		} catch(ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
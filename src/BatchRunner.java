@@ -0,0 +1,255 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless runner: plays a batch of games with a given weight vector on
+ * every core, without any UI, and writes the result of every game as soon
+ * as it is finished. Game i is played with the seeded piece sequence
+ * seed+i, so any game of a batch can be played again.
+ *
+ * Usage: java BatchRunner [-w weights] [-features names] [-n games]
+ *                         [-seed seed] [-o file] [-f csv|json] [-threads n]
+ *                         [-depth 1|2] [-cache entries] [-profile]
+ *                         [-record dir] [-dataset dir [-segment MB]]
+ *
+ * The weights are comma-separated, one per feature of the set given by
+ * -features (see Features.parse), by default rows,holes,bumpiness,height.
+ * Without -w, the default weights of PlayerSkeleton are used. Without -o,
+ * results go to the standard output. With -f json, every game is one JSON
+ * object on its own line. The format defaults to json when the output
+ * file ends in .json, and to csv otherwise. With -depth 2, moves are
+ * chosen by the two-piece search of Lookahead. With -cache, every thread
+ * keeps the features of the boards it tests in a TranspositionCache.
+ * With -profile, the time spent in every phase of the play loop is
+ * sampled (see Profiler) and its breakdown is printed at the end.
+ * With -record, the moves of game i are saved to dir/game-i.replay,
+ * which java Replay plays again (see Replay). With -dataset, the board,
+ * move, features and outcome of every turn of every game are written to
+ * the memory-mapped segments of a Dataset in dir, of 256 MB by default.
+ */
+public class BatchRunner {
+
+	private final PlayerSkeleton player = new PlayerSkeleton();
+	private final PlayerSkeleton.Individual in;
+	private final long seed;
+	private final boolean json;
+	private final Writer out;
+	/* Directory of the replays of the games, or null to record nothing. */
+	File replays;
+	/* Trajectories of the games, or null. */
+	Dataset dataset;
+
+	/* Totals over the games that are finished. */
+	private final AtomicLong totalRows = new AtomicLong();
+	private final AtomicLong totalPieces = new AtomicLong();
+
+	/* Each worker thread records its games with its own recorder. */
+	private final ThreadLocal<Replay.Recorder> recorder = new ThreadLocal<Replay.Recorder>() {
+		@Override
+		protected Replay.Recorder initialValue() {
+			return new Replay.Recorder();
+		}
+	};
+
+	/* Each worker thread writes its trajectories with its own writer. */
+	private final ThreadLocal<Dataset.Writer> datasetWriter = new ThreadLocal<Dataset.Writer>() {
+		@Override
+		protected Dataset.Writer initialValue() {
+			return dataset.new Writer();
+		}
+	};
+
+	/* Each worker thread plays all its games on its own state. */
+	private final ThreadLocal<PlayerSkeleton.StateEx> workerState = new ThreadLocal<PlayerSkeleton.StateEx>() {
+		@Override
+		protected PlayerSkeleton.StateEx initialValue() {
+			return player.new StateEx();
+		}
+	};
+
+	public BatchRunner(float[] weights, int[] features, long seed, boolean json, Writer out, int depth, int cacheSize) {
+		player.featureSet = features;
+		player.cacheSize = cacheSize;
+		if(depth > 1)
+			player.lookahead = new Lookahead(player, null, Lookahead.DEFAULT_BEAM);
+		this.in = player.new Individual(false);
+		if(weights != null)
+			System.arraycopy(weights, 0, in.features, 0, weights.length);
+		this.seed = seed;
+		this.json = json;
+		this.out = out;
+	}
+
+	public static void main(String[] args) throws IOException {
+		float[] weights = null;
+		int[] features = Features.DEFAULT;
+		int games = 1000;
+		long seed = System.nanoTime();
+		String file = null;
+		String format = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int depth = 1;
+		int cacheSize = 0;
+		boolean profile = false;
+		File replays = null;
+		File datasetDir = null;
+		long segmentMB = 256;
+
+		for(int i = 0 ; i < args.length ; i++) {
+			if(args[i].equals("-w"))
+				weights = parseWeights(args[++i]);
+			else if(args[i].equals("-features"))
+				features = Features.parse(args[++i]);
+			else if(args[i].equals("-n"))
+				games = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-seed"))
+				seed = Long.parseLong(args[++i]);
+			else if(args[i].equals("-o"))
+				file = args[++i];
+			else if(args[i].equals("-f"))
+				format = args[++i];
+			else if(args[i].equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-depth"))
+				depth = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-cache"))
+				cacheSize = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-profile"))
+				profile = true;
+			else if(args[i].equals("-record"))
+				replays = new File(args[++i]);
+			else if(args[i].equals("-dataset"))
+				datasetDir = new File(args[++i]);
+			else if(args[i].equals("-segment"))
+				segmentMB = Long.parseLong(args[++i]);
+		}
+		//Must be set before the first state is created, which loads Profiler
+		if(profile)
+			System.setProperty("tetris.profile", "true");
+		if(weights != null && weights.length != features.length)
+			throw new IllegalArgumentException(weights.length + " weights for " + features.length + " features");
+		if(format == null)
+			format = file != null && file.endsWith(".json") ? "json" : "csv";
+
+		Writer out = new BufferedWriter(file == null ? new OutputStreamWriter(System.out) : new FileWriter(file));
+		BatchRunner runner = new BatchRunner(weights, features, seed, format.equals("json"), out, depth, cacheSize);
+		if(replays != null) {
+			replays.mkdirs();
+			runner.replays = replays;
+		}
+		if(datasetDir != null)
+			runner.dataset = new Dataset(datasetDir, features, segmentMB << 20);
+
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			runner.run(pool, games);
+		} finally {
+			pool.shutdown();
+			out.close();
+			if(runner.dataset != null)
+				runner.dataset.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.err.println(String.format(Locale.ROOT,
+				"%d games in %.1f s (%.0f games/hour), %.1f rows and %.1f pieces per game",
+				games, seconds, games / seconds * 3600,
+				runner.totalRows.get() / (double) games, runner.totalPieces.get() / (double) games));
+		if(cacheSize > 0)
+			System.err.println(TranspositionCache.statsThenReset());
+		if(profile)
+			System.err.println(Profiler.report());
+	}
+
+	/* Parse comma-separated weights, in the order of the features of PlayerSkeleton. */
+	private static float[] parseWeights(String s) {
+		String[] parts = s.split(",");
+		float[] weights = new float[parts.length];
+		for(int i = 0 ; i < parts.length ; i++)
+			weights[i] = Float.parseFloat(parts[i].trim());
+		return weights;
+	}
+
+	/* Play the given number of games on the pool. Returns when all of them are finished. */
+	public void run(ForkJoinPool pool, int games) throws IOException {
+		if(!json) {
+			out.write("game,seed,rows,pieces,nanos\n");
+		}
+		pool.invoke(new BatchTask(0, games));
+		out.flush();
+	}
+
+	/* Play game number i of the batch, and write its result. */
+	private void play(int i) {
+		PlayerSkeleton.StateEx state = workerState.get();
+		long gameSeed = seed + i;
+		state.reset(new PieceSource.Seeded(gameSeed));
+
+		long start = System.nanoTime();
+		int rows = in.play(state, false, replays == null ? null : recorder.get(),
+				dataset == null ? null : datasetWriter.get());
+		long nanos = System.nanoTime() - start;
+		int pieces = state.getTurnNumber();
+		if(replays != null) {
+			try {
+				recorder.get().finish(state).write(new File(replays, "game-" + i + ".replay"));
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		totalRows.addAndGet(rows);
+		totalPieces.addAndGet(pieces);
+
+		String line;
+		if(json)
+			line = "{\"game\":" + i + ",\"seed\":" + gameSeed + ",\"rows\":" + rows
+					+ ",\"pieces\":" + pieces + ",\"nanos\":" + nanos + "}\n";
+		else
+			line = i + "," + gameSeed + "," + rows + "," + pieces + "," + nanos + "\n";
+		write(line);
+	}
+
+	private void write(String line) {
+		synchronized(out) {
+			try {
+				out.write(line);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/* Plays a range of the games of the batch, splitting it in halves
+	 * like PlayerSkeleton.GameTask so that idle workers can steal games. */
+	private class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = -2918226093406419561L;
+
+		private int from, to;
+
+		public BatchTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new BatchTask(from, middle), new BatchTask(middle, to));
+				return;
+			}
+			if(to > from)
+				play(from);
+		}
+	}
+}
@@ -0,0 +1,392 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Micro-benchmarks of the hot paths of the player and of the genetic
+ * algorithm. Every benchmark is run for a number of warmup iterations
+ * (to let the JIT compile it), then for a number of measured iterations
+ * of a fixed duration. The average time per operation of every benchmark
+ * is printed, and the results can be written to a JSON file so that they
+ * can be compared between versions.
+ *
+ * Every benchmark runs in this JVM, through the same call site, so the
+ * fastest ones are biased by the dispatch and by the profiles of the ones
+ * run before them. The JMH benchmarks of jmh/ (mvn -Pjmh package) run the
+ * same operations (see operation) in forked JVMs, and are the reference.
+ *
+ * Usage: java Benchmark [-o results.json] [-w warmup iterations]
+ *                       [-i measured iterations] [-t seconds per iteration]
+ *                       [-executors]
+ *
+ * With -executors, only the evaluation of a generation is measured, for
+ * populations of 10^3 to 10^5 individuals, on the worker pool and on virtual
+ * threads (PlayerSkeleton.virtualThreads, which needs Java 21). The games are
+ * capped to a few pieces, so that the difference is the cost of scheduling
+ * the games rather than of playing them.
+ */
+public class Benchmark {
+
+	/* Population sizes for the "generation" benchmark. */
+	private static final int[] POPULATIONS = {50, 100, 200};
+
+	/* Population sizes and pieces per game of the -executors benchmarks. */
+	private static final int[] EXECUTOR_POPULATIONS = {1000, 10000, 100000};
+	private static final int EXECUTOR_MAX_PIECES = 10;
+
+	/* Number of prepared boards used by the move benchmarks. */
+	private static final int NUM_BOARDS = 16;
+
+	private int warmupIterations = 3;
+	private int iterations = 5;
+	private long iterationNanos = 1000000000L;
+	private boolean executors = false;
+
+	/* Results of the operations are accumulated here, so that the JIT
+	 * cannot remove the work of a benchmark as dead code. */
+	private static volatile long sink;
+
+	private final PlayerSkeleton player = new PlayerSkeleton();
+	private final List<Result> results = new ArrayList<Result>();
+
+	/**
+	 * One benchmark: run() performs a single operation and returns
+	 * something derived from its result.
+	 */
+	static abstract class Operation {
+		final String name;
+		final String param;
+
+		Operation(String name, String param) {
+			this.name = name;
+			this.param = param;
+		}
+
+		abstract long run();
+
+		/* Called once the operation has been measured. */
+		void done() {
+		}
+	}
+
+	/**
+	 * Measured time per operation for every iteration of a benchmark.
+	 */
+	private static class Result {
+		final Operation op;
+		final double[] samples;
+
+		Result(Operation op, double[] samples) {
+			this.op = op;
+			this.samples = samples;
+		}
+
+		double mean() {
+			double sum = 0;
+			for(double s : samples)
+				sum += s;
+			return sum / samples.length;
+		}
+
+		//Half-width of the 99% confidence interval of the mean
+		double error() {
+			if(samples.length < 2)
+				return Double.NaN;
+			double mean = mean();
+			double sq = 0;
+			for(double s : samples)
+				sq += (s - mean) * (s - mean);
+			return 2.576 * Math.sqrt(sq / (samples.length - 1)) / Math.sqrt(samples.length);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Benchmark b = new Benchmark();
+		String output = null;
+		for(int i = 0 ; i < args.length ; i++) {
+			if(args[i].equals("-o"))
+				output = args[++i];
+			else if(args[i].equals("-w"))
+				b.warmupIterations = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-i"))
+				b.iterations = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-t"))
+				b.iterationNanos = (long) (Double.parseDouble(args[++i]) * 1e9);
+			else if(args[i].equals("-executors"))
+				b.executors = true;
+		}
+
+		for(Operation op : b.executors ? b.executorOperations() : b.operations())
+			b.measure(op);
+
+		if(output != null)
+			b.writeJson(output);
+	}
+
+	/* Run the warmup and measured iterations of op, and print its result. */
+	private void measure(Operation op) {
+		for(int i = 0 ; i < warmupIterations ; i++)
+			iteration(op);
+
+		double[] samples = new double[iterations];
+		for(int i = 0 ; i < iterations ; i++)
+			samples[i] = iteration(op);
+
+		op.done();
+		Result r = new Result(op, samples);
+		results.add(r);
+		System.out.println(String.format(Locale.ROOT, "%-30s %15.1f +- %10.1f ns/op",
+				op.name + (op.param == null ? "" : " (" + op.param + ")"), r.mean(), r.error()));
+	}
+
+	/* Run op repeatedly for iterationNanos, and return the time per operation.
+	 * The clock is read once per batch of operations, and batches get larger
+	 * as long as they are short, so that reading it does not dominate the
+	 * time of fast operations. */
+	private double iteration(Operation op) {
+		long acc = 0;
+		long ops = 0;
+		long batch = 1;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for(long i = 0 ; i < batch ; i++)
+				acc += op.run();
+			ops += batch;
+			elapsed = System.nanoTime() - start;
+			if(elapsed < iterationNanos / 100)
+				batch *= 2;
+		} while(elapsed < iterationNanos);
+		sink += acc;
+		return elapsed / (double) ops;
+	}
+
+	/* The operation with the given name and, if param is not null,
+	 * parameters, among the ones of operations() and executorOperations().
+	 * Used by the JMH benchmarks of jmh/, so that both run the same code. */
+	static Operation operation(String name, String param) {
+		Benchmark b = new Benchmark();
+		for(Operation op : name.equals("evaluate") ? b.executorOperations() : b.operations())
+			if(op.name.equals(name) && (param == null || param.equals(op.param)))
+				return op;
+		throw new IllegalArgumentException("No benchmark " + name + (param == null ? "" : " (" + param + ")"));
+	}
+
+	/* Mid-game boards to test moves on: each one is a seeded game played
+	 * for a few hundred turns by the default individual. */
+	private PlayerSkeleton.StateEx[] boards() {
+		PlayerSkeleton.StateEx[] boards = new PlayerSkeleton.StateEx[NUM_BOARDS];
+		PlayerSkeleton.Individual in = player.new Individual(false);
+		for(int i = 0 ; i < NUM_BOARDS ; i++) {
+			boards[i] = player.new StateEx();
+			boards[i].reset(new PieceSource.Seeded(i));
+			for(int t = 0 ; t < 50 + 25 * i && !boards[i].hasLost() ; t++)
+				boards[i].makeMove(in.bestMove(boards[i]));
+		}
+		return boards;
+	}
+
+	private List<Operation> operations() {
+		final PlayerSkeleton.StateEx[] boards = boards();
+		final float[] weights = player.new Individual(false).features;
+		List<Operation> ops = new ArrayList<Operation>();
+
+		ops.add(new Operation("State.makeMove", null) {
+			State state = new State(new PieceSource.Seeded(0));
+			int move = 0;
+			long run() {
+				if(state.hasLost())
+					state.reset();
+				move = move * 1103515245 + 12345;
+				state.makeMove((move >>> 16) % state.legalMoves().length);
+				return state.getTurnNumber();
+			}
+		});
+
+		ops.add(new Operation("StateEx.dryRunMove", null) {
+			int board = 0, move = 0;
+			long run() {
+				PlayerSkeleton.StateEx s = boards[board];
+				int[][] legalMoves = s.legalMoves();
+				System.arraycopy(s.getTop(), 0, s.topCopy, 0, State.COLS);
+				int cleared = s.dryRunMove(s.getNextPiece(), legalMoves[move][State.ORIENT], legalMoves[move][State.SLOT]);
+				if(cleared >= 0)
+					s.undoMove();
+				System.arraycopy(s.getTop(), 0, s.topCopy, 0, State.COLS);
+				if(++move == legalMoves.length) {
+					move = 0;
+					board = (board + 1) % boards.length;
+				}
+				return cleared;
+			}
+		});
+
+		ops.add(new Operation("StateEx.testMove", null) {
+			int board = 0, move = 0;
+			long run() {
+				PlayerSkeleton.StateEx s = boards[board];
+				int[][] legalMoves = s.legalMoves();
+				float score = s.testMove(legalMoves[move][State.ORIENT], legalMoves[move][State.SLOT], weights);
+				if(++move == legalMoves.length) {
+					move = 0;
+					board = (board + 1) % boards.length;
+				}
+				return Float.floatToRawIntBits(score);
+			}
+		});
+
+		ops.add(new Operation("StateEx.scoreMoves", null) {
+			int board = 0;
+			long run() {
+				board = (board + 1) % boards.length;
+				return boards[board].scoreMoves(weights);
+			}
+		});
+
+		ops.add(new Operation("StateEx.testMoveFull", null) {
+			int board = 0, move = 0;
+			long run() {
+				PlayerSkeleton.StateEx s = boards[board];
+				int[][] legalMoves = s.legalMoves();
+				float score = s.testMoveFull(legalMoves[move][State.ORIENT], legalMoves[move][State.SLOT], weights);
+				if(++move == legalMoves.length) {
+					move = 0;
+					board = (board + 1) % boards.length;
+				}
+				return Float.floatToRawIntBits(score);
+			}
+		});
+
+		ops.add(new Operation("StateEx.getHoles", null) {
+			int board = 0;
+			long run() {
+				board = (board + 1) % boards.length;
+				return boards[board].getHoles();
+			}
+		});
+
+		ops.add(new Operation("Lookahead.bestMove", "depth=2") {
+			Lookahead lookahead = new Lookahead(player, null, Lookahead.DEFAULT_BEAM);
+			int board = 0;
+			long run() {
+				board = (board + 1) % boards.length;
+				return lookahead.bestMove(boards[board], weights);
+			}
+		});
+
+		ops.add(new Operation("Individual.play", null) {
+			PlayerSkeleton.Individual in = player.new Individual(false);
+			PlayerSkeleton.StateEx state = player.new StateEx();
+			int seed = 0;
+			long run() {
+				state.reset(new PieceSource.Seeded(seed++ % 4));
+				return in.play(state, false);
+			}
+		});
+
+		for(final int size : POPULATIONS) {
+			//The same population is evaluated every time, so that the
+			//iterations do not get slower as the individuals get better.
+			ops.add(new Operation("genetic.generation", "population=" + size) {
+				PlayerSkeleton.Individual[] gen = population(size);
+				float[] fitnesses = new float[size];
+				PlayerSkeleton.Individual[] elite = new PlayerSkeleton.Individual[size / 10];
+				long run() {
+					player.evaluate(gen, fitnesses, elite.length);
+					player.select(gen, fitnesses, elite);
+					PlayerSkeleton.Individual[] next = player.combine(elite, size);
+					player.mutate(next, 0.05f);
+					return Float.floatToRawIntBits(elite[0].fitness);
+				}
+			});
+		}
+
+		return ops;
+	}
+
+	/* Evaluation of a generation on the worker pool and on virtual threads.
+	 * The population of an operation is only created when it first runs,
+	 * and dropped after it is measured, to bound the memory used. */
+	private List<Operation> executorOperations() {
+		List<Operation> ops = new ArrayList<Operation>();
+		for(final int size : EXECUTOR_POPULATIONS) {
+			for(final boolean virtual : new boolean[] {false, true}) {
+				if(virtual && !VirtualThreads.available()) {
+					System.out.println("Virtual threads need Java 21 or later, skipping population=" + size + ",executor=virtual");
+					continue;
+				}
+				final PlayerSkeleton p = new PlayerSkeleton();
+				p.maxPieces = EXECUTOR_MAX_PIECES;
+				p.virtualThreads = virtual;
+				ops.add(new Operation("evaluate", "population=" + size + ",executor=" + (virtual ? "virtual" : "pool")) {
+					PlayerSkeleton.Individual[] gen;
+					float[] fitnesses = new float[size];
+					long run() {
+						if(gen == null)
+							gen = population(p, size);
+						p.evaluate(gen, fitnesses, size / 10);
+						return Float.floatToRawIntBits(fitnesses[0]);
+					}
+					@Override
+					void done() {
+						gen = null;
+					}
+				});
+			}
+		}
+		return ops;
+	}
+
+	/* A random population, like the first generation of genetic. */
+	private PlayerSkeleton.Individual[] population(int size) {
+		return population(player, size);
+	}
+
+	private static PlayerSkeleton.Individual[] population(PlayerSkeleton p, int size) {
+		PlayerSkeleton.Individual[] gen = new PlayerSkeleton.Individual[size];
+		for(int i = 0 ; i < size ; i++)
+			gen[i] = p.new Individual(true);
+		return gen;
+	}
+
+	/* Write the results in a format close to the JSON output of JMH. */
+	private void writeJson(String file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("[");
+			for(int i = 0 ; i < results.size() ; i++) {
+				Result r = results.get(i);
+				out.println("    {");
+				out.println("        \"benchmark\" : \"" + r.op.name + "\",");
+				if(r.op.param != null)
+					out.println("        \"params\" : { \"" + r.op.param.replace("=", "\" : \"").replace(",", "\", \"") + "\" },");
+				out.println("        \"mode\" : \"avgt\",");
+				out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+				out.println("        \"measurementIterations\" : " + iterations + ",");
+				out.println("        \"measurementTime\" : \"" + (iterationNanos / 1e9) + " s\",");
+				out.println("        \"primaryMetric\" : {");
+				out.println("            \"score\" : " + number(r.mean()) + ",");
+				out.println("            \"scoreError\" : " + number(r.error()) + ",");
+				out.println("            \"scoreUnit\" : \"ns/op\",");
+				out.print("            \"rawData\" : [ [ ");
+				for(int j = 0 ; j < r.samples.length ; j++)
+					out.print((j > 0 ? ", " : "") + number(r.samples[j]));
+				out.println(" ] ]");
+				out.println("        }");
+				out.println("    }" + (i < results.size() - 1 ? "," : ""));
+			}
+			out.println("]");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String number(double d) {
+		if(Double.isNaN(d))
+			return "\"NaN\"";
+		return String.format(Locale.ROOT, "%.3f", d);
+	}
+}
@@ -0,0 +1,176 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Snapshot of a run of the genetic algorithm, taken between two generations.
+ * It holds everything needed to continue the run exactly as if it had not
+ * been interrupted: the parameters of the run, the weights of the next
+ * generation, the fitness history used by variable mutation, and the state
+ * of the random generator.
+ *
+ * Checkpoints are stored in a small binary file:
+ * magic, version, parameters, progress, history, population, random state.
+ */
+class Checkpoint {
+	private static final int MAGIC = 0x54474131; //"TGA1"
+	private static final int VERSION = 3;
+
+	//Parameters of the run
+	int genSize;
+	int numGens;
+	float mutation;
+	float elitism;
+	boolean varyMutation;
+	float smoothing;
+	boolean commonSeeds;
+	int maxPieces;
+	boolean racing;
+	//Names of the features of the weights (see Features.parse)
+	String features;
+
+	//Progress: the next generation to evaluate, and the state of variable mutation
+	int generation;
+	float variableMutation;
+	float previousMean;
+
+	//Best fitness of the last generations (fitness_queue in genetic)
+	int[] historyGenerations;
+	float[] historyFitness;
+
+	//Weights of every individual of the next generation
+	float[][] population;
+
+	//Serialized state of the random generator
+	byte[] random;
+
+	/* Copy the state of the given random generator. The generator can keep
+	 * being used afterwards, the checkpoint does not change. */
+	void saveRandom(Random r) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(r);
+		out.close();
+		random = bytes.toByteArray();
+	}
+
+	/* A random generator in the state saved by saveRandom. */
+	Random restoreRandom() throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(random));
+		try {
+			return (Random) in.readObject();
+		} catch(ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Write this checkpoint to file. It is first written next to it and then
+	 * renamed, so that a crash while writing never leaves a broken file. */
+	void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(genSize);
+			out.writeInt(numGens);
+			out.writeFloat(mutation);
+			out.writeFloat(elitism);
+			out.writeBoolean(varyMutation);
+			out.writeFloat(smoothing);
+			out.writeBoolean(commonSeeds);
+			out.writeInt(maxPieces);
+			out.writeBoolean(racing);
+			out.writeUTF(features);
+
+			out.writeInt(generation);
+			out.writeFloat(variableMutation);
+			out.writeFloat(previousMean);
+
+			out.writeInt(historyGenerations.length);
+			for(int i = 0 ; i < historyGenerations.length ; i++) {
+				out.writeInt(historyGenerations[i]);
+				out.writeFloat(historyFitness[i]);
+			}
+
+			out.writeInt(population.length);
+			out.writeInt(population.length == 0 ? 0 : population[0].length);
+			for(float[] features : population)
+				for(float f : features)
+					out.writeFloat(f);
+
+			out.writeInt(random.length);
+			out.write(random);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static Checkpoint read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != MAGIC)
+				throw new IOException(file + " is not a checkpoint");
+			int version = in.readInt();
+			if(version < 1 || version > VERSION)
+				throw new IOException("Unsupported checkpoint version " + version);
+
+			Checkpoint c = new Checkpoint();
+			c.genSize = in.readInt();
+			c.numGens = in.readInt();
+			c.mutation = in.readFloat();
+			c.elitism = in.readFloat();
+			c.varyMutation = in.readBoolean();
+			c.smoothing = in.readFloat();
+			c.commonSeeds = in.readBoolean();
+			//Version 1 did not have capped games and racing
+			if(version >= 2) {
+				c.maxPieces = in.readInt();
+				c.racing = in.readBoolean();
+			}
+			//Before version 3, the features were always the default ones
+			c.features = version >= 3 ? in.readUTF() : Features.names(Features.DEFAULT);
+
+			c.generation = in.readInt();
+			c.variableMutation = in.readFloat();
+			c.previousMean = in.readFloat();
+
+			int history = in.readInt();
+			c.historyGenerations = new int[history];
+			c.historyFitness = new float[history];
+			for(int i = 0 ; i < history ; i++) {
+				c.historyGenerations[i] = in.readInt();
+				c.historyFitness[i] = in.readFloat();
+			}
+
+			int size = in.readInt();
+			int features = in.readInt();
+			c.population = new float[size][features];
+			for(int i = 0 ; i < size ; i++)
+				for(int j = 0 ; j < features ; j++)
+					c.population[i][j] = in.readFloat();
+
+			c.random = new byte[in.readInt()];
+			in.readFully(c.random);
+			return c;
+		} finally {
+			in.close();
+		}
+	}
+}
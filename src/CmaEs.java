@@ -0,0 +1,210 @@
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Covariance matrix adaptation evolution strategy, (mu/mu_w, lambda)-CMA-ES
+ * as in Hansen's tutorial ("The CMA Evolution Strategy: A Tutorial"), with
+ * its default learning rates. The candidates are drawn from a normal
+ * distribution N(mean, sigma^2 C); the mean moves to the weighted mean of the
+ * best half, C learns the directions in which the good candidates lie, and
+ * sigma grows or shrinks depending on whether the mean keeps moving in the
+ * same direction (the evolution path ps).
+ *
+ * There are at most Features.COUNT weights, so C is decomposed from scratch
+ * (Jacobi rotations) at every generation.
+ */
+class CmaEs implements Optimizer {
+	private final Random random;
+	private final int n, lambda, mu;
+	private final double[] weights;
+	private final double mueff, cc, cs, c1, cmu, damps, chiN;
+
+	private final double[] mean;
+	private double sigma;
+	private final double[][] C;
+	//C = B diag(D^2) B^T
+	private final double[][] B;
+	private final double[] D;
+	private final double[] pc, ps;
+	//Steps y = B D z of the candidates of the last call to ask
+	private double[][] steps;
+	private int generation;
+
+	CmaEs(float[] start, double sigma, int lambda, Random random) {
+		this.random = random;
+		this.n = start.length;
+		this.lambda = lambda;
+		this.mu = lambda / 2;
+		this.sigma = sigma;
+
+		weights = new double[mu];
+		double sum = 0, sumSquares = 0;
+		for(int i = 0 ; i < mu ; i++) {
+			weights[i] = Math.log(mu + 0.5) - Math.log(i + 1);
+			sum += weights[i];
+		}
+		for(int i = 0 ; i < mu ; i++) {
+			weights[i] /= sum;
+			sumSquares += weights[i] * weights[i];
+		}
+		mueff = 1 / sumSquares;
+
+		cc = (4 + mueff / n) / (n + 4 + 2 * mueff / n);
+		cs = (mueff + 2) / (n + mueff + 5);
+		c1 = 2 / ((n + 1.3) * (n + 1.3) + mueff);
+		cmu = Math.min(1 - c1, 2 * (mueff - 2 + 1 / mueff) / ((n + 2) * (n + 2) + mueff));
+		damps = 1 + 2 * Math.max(0, Math.sqrt((mueff - 1) / (n + 1)) - 1) + cs;
+		chiN = Math.sqrt(n) * (1 - 1.0 / (4 * n) + 1.0 / (21 * n * n));
+
+		mean = new double[n];
+		for(int i = 0 ; i < n ; i++)
+			mean[i] = start[i];
+		C = new double[n][n];
+		B = new double[n][n];
+		D = new double[n];
+		for(int i = 0 ; i < n ; i++) {
+			C[i][i] = 1;
+			B[i][i] = 1;
+			D[i] = 1;
+		}
+		pc = new double[n];
+		ps = new double[n];
+	}
+
+	public int populationSize() {
+		return lambda;
+	}
+
+	public int parents() {
+		return mu;
+	}
+
+	public float[][] ask() {
+		float[][] candidates = new float[lambda][n];
+		steps = new double[lambda][n];
+		double[] z = new double[n];
+		for(int k = 0 ; k < lambda ; k++) {
+			for(int i = 0 ; i < n ; i++)
+				z[i] = D[i] * random.nextGaussian();
+			for(int i = 0 ; i < n ; i++) {
+				double y = 0;
+				for(int j = 0 ; j < n ; j++)
+					y += B[i][j] * z[j];
+				steps[k][i] = y;
+				candidates[k][i] = (float) (mean[i] + sigma * y);
+			}
+		}
+		return candidates;
+	}
+
+	public void tell(float[][] candidates, float[] fitnesses) {
+		Integer[] order = Optimizer.ranking(fitnesses);
+		generation++;
+
+		//Weighted mean of the steps of the best mu candidates
+		double[] step = new double[n];
+		for(int k = 0 ; k < mu ; k++)
+			for(int i = 0 ; i < n ; i++)
+				step[i] += weights[k] * steps[order[k]][i];
+		for(int i = 0 ; i < n ; i++)
+			mean[i] += sigma * step[i];
+
+		//ps follows C^-1/2 step = B D^-1 B^T step
+		double[] t = new double[n];
+		for(int j = 0 ; j < n ; j++) {
+			for(int i = 0 ; i < n ; i++)
+				t[j] += B[i][j] * step[i];
+			t[j] /= D[j];
+		}
+		double psNorm = 0;
+		for(int i = 0 ; i < n ; i++) {
+			double w = 0;
+			for(int j = 0 ; j < n ; j++)
+				w += B[i][j] * t[j];
+			ps[i] = (1 - cs) * ps[i] + Math.sqrt(cs * (2 - cs) * mueff) * w;
+			psNorm += ps[i] * ps[i];
+		}
+		psNorm = Math.sqrt(psNorm);
+		//Stall the update of pc while ps is long, so that C does not grow too fast
+		boolean hsig = psNorm / Math.sqrt(1 - Math.pow(1 - cs, 2 * generation)) / chiN < 1.4 + 2.0 / (n + 1);
+		for(int i = 0 ; i < n ; i++)
+			pc[i] = (1 - cc) * pc[i] + (hsig ? Math.sqrt(cc * (2 - cc) * mueff) * step[i] : 0);
+
+		//Rank-one update from pc, rank-mu update from the steps of the best candidates
+		double correction = hsig ? 0 : c1 * cc * (2 - cc);
+		for(int i = 0 ; i < n ; i++) {
+			for(int j = 0 ; j <= i ; j++) {
+				double rankMu = 0;
+				for(int k = 0 ; k < mu ; k++)
+					rankMu += weights[k] * steps[order[k]][i] * steps[order[k]][j];
+				C[i][j] = (1 - c1 - cmu) * C[i][j] + c1 * pc[i] * pc[j] + correction * C[i][j] + cmu * rankMu;
+				C[j][i] = C[i][j];
+			}
+		}
+
+		sigma *= Math.exp(cs / damps * (psNorm / chiN - 1));
+		decompose();
+	}
+
+	/* Eigendecomposition of C into B and D by cyclic Jacobi rotations. */
+	private void decompose() {
+		double[][] a = new double[n][];
+		for(int i = 0 ; i < n ; i++) {
+			a[i] = C[i].clone();
+			for(int j = 0 ; j < n ; j++)
+				B[i][j] = i == j ? 1 : 0;
+		}
+		for(int sweep = 0 ; sweep < 50 ; sweep++) {
+			double off = 0;
+			for(int i = 0 ; i < n ; i++)
+				for(int j = i + 1 ; j < n ; j++)
+					off += a[i][j] * a[i][j];
+			if(off < 1e-30)
+				break;
+			for(int p = 0 ; p < n ; p++) {
+				for(int q = p + 1 ; q < n ; q++) {
+					if(a[p][q] == 0)
+						continue;
+					double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					if(theta == 0)
+						t = 1;
+					double c = 1 / Math.sqrt(t * t + 1), s = t * c;
+					for(int k = 0 ; k < n ; k++) {
+						double akp = a[k][p], akq = a[k][q];
+						a[k][p] = c * akp - s * akq;
+						a[k][q] = s * akp + c * akq;
+					}
+					for(int k = 0 ; k < n ; k++) {
+						double apk = a[p][k], aqk = a[q][k];
+						a[p][k] = c * apk - s * aqk;
+						a[q][k] = s * apk + c * aqk;
+					}
+					for(int k = 0 ; k < n ; k++) {
+						double bkp = B[k][p], bkq = B[k][q];
+						B[k][p] = c * bkp - s * bkq;
+						B[k][q] = s * bkp + c * bkq;
+					}
+				}
+			}
+		}
+		for(int i = 0 ; i < n ; i++)
+			D[i] = Math.sqrt(Math.max(a[i][i], 1e-20));
+	}
+
+	public float[] mean() {
+		float[] m = new float[n];
+		for(int i = 0 ; i < n ; i++)
+			m[i] = (float) mean[i];
+		return m;
+	}
+
+	public String describe() {
+		double min = Double.POSITIVE_INFINITY, max = 0;
+		for(double d : D) {
+			min = Math.min(min, d);
+			max = Math.max(max, d);
+		}
+		return String.format(Locale.ROOT, "sigma %.4g, axis ratio %.3g", sigma, max / min);
+	}
+}
@@ -0,0 +1,83 @@
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Noisy cross-entropy method (Szita and Lorincz, "Learning Tetris Using the
+ * Noisy Cross-Entropy Method"). The candidates are drawn from independent
+ * normal distributions, one per weight. After every generation, the mean and
+ * variance of every weight become the ones of the best candidates (the elite
+ * fraction), plus some noise, which keeps the variance from collapsing before
+ * the mean has converged. The noise decreases linearly from its starting value
+ * to 0 after noiseGenerations generations.
+ */
+class CrossEntropy implements Optimizer {
+	private final Random random;
+	private final int n, size, elite;
+	private final double[] mean, variance;
+	private final double noise;
+	private final int noiseGenerations;
+	private int generation;
+
+	CrossEntropy(float[] start, double variance, int size, float elitism, double noise, int noiseGenerations, Random random) {
+		this.random = random;
+		this.n = start.length;
+		this.size = size;
+		this.elite = Math.max((int) (size * elitism), 2);
+		this.noise = noise;
+		this.noiseGenerations = noiseGenerations;
+		this.mean = new double[n];
+		this.variance = new double[n];
+		for(int i = 0 ; i < n ; i++) {
+			mean[i] = start[i];
+			this.variance[i] = variance;
+		}
+	}
+
+	public int populationSize() {
+		return size;
+	}
+
+	public int parents() {
+		return elite;
+	}
+
+	public float[][] ask() {
+		float[][] candidates = new float[size][n];
+		for(int k = 0 ; k < size ; k++)
+			for(int i = 0 ; i < n ; i++)
+				candidates[k][i] = (float) (mean[i] + Math.sqrt(variance[i]) * random.nextGaussian());
+		return candidates;
+	}
+
+	public void tell(float[][] candidates, float[] fitnesses) {
+		Integer[] order = Optimizer.ranking(fitnesses);
+		double z = noise * Math.max(1 - (double) generation / noiseGenerations, 0);
+		generation++;
+		for(int i = 0 ; i < n ; i++) {
+			double m = 0, v = 0;
+			for(int k = 0 ; k < elite ; k++)
+				m += candidates[order[k]][i];
+			m /= elite;
+			for(int k = 0 ; k < elite ; k++) {
+				double d = candidates[order[k]][i] - m;
+				v += d * d;
+			}
+			mean[i] = m;
+			variance[i] = v / elite + z;
+		}
+	}
+
+	public float[] mean() {
+		float[] m = new float[n];
+		for(int i = 0 ; i < n ; i++)
+			m[i] = (float) mean[i];
+		return m;
+	}
+
+	public String describe() {
+		double max = 0;
+		for(double v : variance)
+			max = Math.max(max, v);
+		return String.format(Locale.ROOT, "largest variance %.4g", max);
+	}
+}
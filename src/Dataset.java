@@ -0,0 +1,324 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dataset of trajectories for offline learning: one fixed-width record per
+ * move of every game, written to memory-mapped segment files
+ * (dir/segment-00000.trj, segment-00001.trj, ...) of at most segmentBytes
+ * bytes each. When a segment is full, the next one is created.
+ *
+ * Writers never wait for each other: every thread has its own Writer, which
+ * reserves chunks of CHUNK records of the current segment by incrementing
+ * an atomic counter, and fills them without any lock. The only lock is taken
+ * to create the next segment, once per segment.
+ *
+ * Segment file, little-endian: a header of HEADER bytes,
+ *   int magic "TRJ1", int version, long number of record slots used,
+ *   int record size, int ROWS, int COLS, int number of features,
+ *   one byte per feature (its number in Features),
+ * then the records, each of recordSize bytes:
+ *   0  long  seed of the pieces of the game (0 if they are not seeded)
+ *   8  int   turn of the move, from 1 (0 marks a slot that was not used)
+ *   12 int   outcome: rows cleared from this move to the end of the game
+ *   16 byte  piece, byte index of the move in legalMoves, byte orient, byte slot
+ *   20 short ROWS rows of the board before the move, one bit per column
+ *   62 byte  COLS column heights (top) before the move
+ *   72 int   the features of the board after the move, in the order of the header
+ * padded to a multiple of 8 bytes. The outcome is only known at the end of
+ * the game, so the writer fills it in then, for all the records of the game.
+ *
+ * Readers map the segments read-only and read the records in place (scan),
+ * without copying them.
+ */
+public class Dataset {
+	private static final int MAGIC = 0x314A5254; //"TRJ1" in little-endian
+	private static final int VERSION = 1;
+	static final int HEADER = 64;
+	private static final int CHUNK = 1024;
+
+	static final int SEED = 0, TURN = 8, OUTCOME = 12, PIECE = 16, MOVE = 17, ORIENT = 18, SLOT = 19;
+	static final int ROWS = 20;
+	static final int TOP = ROWS + 2 * State.ROWS;
+	static final int FEATURES = TOP + State.COLS;
+
+	private final File dir;
+	private final int[] features;
+	private final int recordSize;
+	private final long segmentBytes;
+	private volatile Segment current;
+	private int segments;
+	//Every segment still open
+	private final List<Segment> open = new ArrayList<Segment>();
+
+	Dataset(File dir, int[] features, long segmentBytes) throws IOException {
+		this.dir = dir;
+		this.features = features;
+		this.recordSize = recordSize(features.length);
+		this.segmentBytes = Math.min(segmentBytes, Integer.MAX_VALUE);
+		if(this.segmentBytes < HEADER + (long) CHUNK * recordSize)
+			throw new IllegalArgumentException("Segments of " + segmentBytes + " bytes cannot hold a chunk of records");
+		dir.mkdirs();
+		current = newSegment();
+	}
+
+	static int recordSize(int numFeatures) {
+		return (FEATURES + 4 * numFeatures + 7) & ~7;
+	}
+
+	private synchronized Segment newSegment() throws IOException {
+		File file = new File(dir, String.format(Locale.ROOT, "segment-%05d.trj", segments++));
+		Segment s = new Segment(file, (int) ((segmentBytes - HEADER) / recordSize));
+		open.add(s);
+		return s;
+	}
+
+	/* Make the segment after full the current one, unless another thread already did. */
+	private synchronized Segment rotate(Segment full) throws IOException {
+		if(current == full)
+			current = newSegment();
+		return current;
+	}
+
+	/* Write every segment to disk. The writers must all be done. */
+	synchronized void close() throws IOException {
+		for(Segment s : new ArrayList<Segment>(open))
+			s.finish();
+	}
+
+	/**
+	 * A segment file and its mapping. Records are reserved by chunks;
+	 * users counts the games that have records in the segment and are not
+	 * finished, so that the segment can be written to disk as soon as it is
+	 * full and the last of them is finished.
+	 */
+	private class Segment {
+		final RandomAccessFile file;
+		final MappedByteBuffer buffer;
+		final int capacity;
+		final AtomicLong next = new AtomicLong();
+		final AtomicInteger users = new AtomicInteger();
+		volatile boolean full;
+		final AtomicBoolean finished = new AtomicBoolean();
+
+		Segment(File f, int capacity) throws IOException {
+			this.capacity = capacity;
+			file = new RandomAccessFile(f, "rw");
+			file.setLength(HEADER + (long) capacity * recordSize);
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(16, recordSize);
+			buffer.putInt(20, State.ROWS);
+			buffer.putInt(24, State.COLS);
+			buffer.putInt(28, features.length);
+			for(int i = 0 ; i < features.length ; i++)
+				buffer.put(32 + i, (byte) features[i]);
+		}
+
+		/* Reserve a chunk of records: return its first slot, or -1 if the
+		 * segment is full. The caller uses the segment until it releases it. */
+		long reserve() {
+			users.incrementAndGet();
+			long first = next.getAndAdd(CHUNK);
+			if(first + CHUNK <= capacity)
+				return first;
+			full = true;
+			release();
+			return -1;
+		}
+
+		/* The caller is done with the segment, which is written to disk
+		 * once it is full and no one uses it any more. */
+		void release() {
+			if(users.decrementAndGet() == 0 && full)
+				finish();
+		}
+
+		void finish() {
+			if(!finished.compareAndSet(false, true))
+				return;
+			buffer.putLong(8, Math.min(next.get(), capacity));
+			buffer.force();
+			try {
+				file.close();
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+			synchronized(Dataset.this) {
+				open.remove(this);
+			}
+		}
+	}
+
+	/**
+	 * Writes the records of the games of one thread. Every chunk the game has
+	 * records in is a range, which keeps its segment in use until the game is
+	 * over and its outcome has been filled in.
+	 */
+	class Writer {
+		private Segment segment;
+		private int position, end;
+		//Ranges of the records of the current game: segment, first record, number of records
+		private final List<Segment> rangeSegments = new ArrayList<Segment>();
+		private int[] ranges = new int[16];
+		private int numRanges;
+		private long seed;
+
+		/* Start recording a new game, played on state. */
+		void start(State state) {
+			PieceSource pieces = state.getPieceSource();
+			seed = pieces instanceof PieceSource.Seeded ? ((PieceSource.Seeded) pieces).getSeed() : 0;
+		}
+
+		/* Record the move about to be made on state, with the features of the
+		 * board after it. */
+		void move(State state, int index, int[] moveFeatures) {
+			if(position == end) {
+				try {
+					reserve();
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			ByteBuffer b = segment.buffer;
+			int offset = HEADER + position * recordSize;
+			int[] move = state.legalMoves()[index];
+			b.putLong(offset + SEED, seed);
+			b.putInt(offset + TURN, state.getTurnNumber() + 1);
+			//Rows cleared before the move, until the outcome is known
+			b.putInt(offset + OUTCOME, state.getRowsCleared());
+			b.put(offset + PIECE, (byte) state.getNextPiece());
+			b.put(offset + MOVE, (byte) index);
+			b.put(offset + ORIENT, (byte) move[State.ORIENT]);
+			b.put(offset + SLOT, (byte) move[State.SLOT]);
+			int[] rows = state.getRows();
+			for(int r = 0 ; r < State.ROWS ; r++)
+				b.putShort(offset + ROWS + 2 * r, (short) rows[r]);
+			int[] top = state.getTop();
+			for(int c = 0 ; c < State.COLS ; c++)
+				b.put(offset + TOP + c, (byte) top[c]);
+			for(int i = 0 ; i < features.length ; i++)
+				b.putInt(offset + FEATURES + 4 * i, moveFeatures[i]);
+			position++;
+			ranges[2 * numRanges - 1]++;
+		}
+
+		/* Take a new chunk, in the current segment if it is not full. */
+		private void reserve() throws IOException {
+			long first;
+			Segment s;
+			while((first = (s = current).reserve()) < 0)
+				rotate(s);
+			segment = s;
+			position = (int) first;
+			end = position + CHUNK;
+			addRange();
+		}
+
+		private void addRange() {
+			if(2 * numRanges + 2 > ranges.length)
+				ranges = Arrays.copyOf(ranges, ranges.length * 2);
+			rangeSegments.add(segment);
+			ranges[2 * numRanges] = position;
+			ranges[2 * numRanges + 1] = 0;
+			numRanges++;
+		}
+
+		/* The game is over, on state: fill in the outcome of all its records. */
+		void finish(State state) {
+			int total = state.getRowsCleared();
+			//The rest of the last chunk goes to the next game, which uses its segment from now on
+			Segment last = segment;
+			if(last != null && position < end)
+				last.users.incrementAndGet();
+			for(int i = 0 ; i < numRanges ; i++) {
+				Segment s = rangeSegments.get(i);
+				ByteBuffer b = s.buffer;
+				int first = ranges[2 * i], count = ranges[2 * i + 1];
+				for(int r = first ; r < first + count ; r++) {
+					int offset = HEADER + r * recordSize + OUTCOME;
+					b.putInt(offset, total - b.getInt(offset));
+				}
+				s.release();
+			}
+			rangeSegments.clear();
+			numRanges = 0;
+			if(last != null && position < end)
+				addRange();
+			else
+				position = end;
+		}
+	}
+
+	/**
+	 * Reads records in place, from the mapping of their segment.
+	 */
+	interface Visitor {
+		/* Called for every used record: it is the recordSize bytes of b at offset. */
+		void record(ByteBuffer b, int offset);
+	}
+
+	/* Call visitor for every record of every segment in dir, in order. Return
+	 * the number of features of the records. */
+	static int scan(File dir, Visitor visitor) throws IOException {
+		File[] files = dir.listFiles();
+		if(files == null)
+			throw new IOException(dir + " is not a directory");
+		Arrays.sort(files);
+		int numFeatures = -1;
+		for(File f : files) {
+			if(!f.getName().endsWith(".trj"))
+				continue;
+			RandomAccessFile file = new RandomAccessFile(f, "r");
+			try {
+				MappedByteBuffer b = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+				b.order(ByteOrder.LITTLE_ENDIAN);
+				if(b.getInt(0) != MAGIC || b.getInt(4) != VERSION)
+					throw new IOException(f + " is not a dataset segment");
+				long count = b.getLong(8);
+				int size = b.getInt(16);
+				numFeatures = b.getInt(28);
+				for(long r = 0 ; r < count ; r++) {
+					int offset = (int) (HEADER + r * size);
+					if(b.getInt(offset + TURN) != 0)
+						visitor.record(b, offset);
+				}
+			} finally {
+				file.close();
+			}
+		}
+		return numFeatures;
+	}
+
+	/* Print a summary of the dataset in a directory. */
+	public static void main(String[] args) throws IOException {
+		final long[] counts = new long[3]; //records, games, sum of outcomes
+		long start = System.nanoTime();
+		int numFeatures = scan(new File(args[0]), new Visitor() {
+			public void record(ByteBuffer b, int offset) {
+				counts[0]++;
+				if(b.getInt(offset + TURN) == 1)
+					counts[1]++;
+				counts[2] += b.getInt(offset + OUTCOME);
+			}
+		});
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(Locale.ROOT,
+				"%d records of %d games, %d features, mean outcome %.1f rows, scanned in %.2f s (%.0f records/s)",
+				counts[0], counts[1], numFeatures, counts[2] / (double) Math.max(counts[0], 1),
+				seconds, counts[0] / seconds));
+	}
+}
@@ -0,0 +1,465 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Genetic algorithm over several JVMs. The coordinator runs genetic as
+ * usual (it owns the population, selection, combine and mutate), but the
+ * games of every generation are played by worker processes connected to
+ * it over TCP, on the same machine or on others.
+ *
+ * The games are sent in batches: one batch is the games of one individual
+ * for one round of evaluate, with its weights and the seed of every game.
+ * The seeds are decided by the coordinator, so the fitnesses do not depend
+ * on which worker plays a batch, nor on how many workers there are.
+ * Every worker keeps WINDOW batches per core in flight, plays them on all
+ * its cores, and sends back the rows cleared in every game of a batch as
+ * soon as it is finished.
+ *
+ * Workers send a heartbeat every HEARTBEAT_MILLIS. A worker that has not
+ * been heard from for TIMEOUT_MILLIS (or whose connection breaks) is
+ * dropped, and the batches it had not finished are given to the others.
+ * Workers can join at any time, and start receiving batches at once.
+ *
+ * Messages are a type byte followed by its fields, in the order below
+ * (see DataOutputStream):
+ * - HELLO, worker to coordinator: PROTOCOL version, number of cores;
+ * - SETUP, coordinator to worker: maxPieces and feature set of the run;
+ * - BATCH, coordinator to worker: id, weights, number of games, seeds;
+ * - RESULT, worker to coordinator: id, number of games, rows of each game;
+ * - HEARTBEAT, worker to coordinator: nothing.
+ *
+ * A worker of another version of the protocol is rejected when it joins,
+ * and one that sends a malformed message is dropped like a lost one.
+ *
+ * Usage: java PlayerSkeleton -g -coordinator port [other options of -g]
+ *        java PlayerSkeleton -worker host:port [-threads n] [-cache entries]
+ */
+class Distributed {
+	private static final byte HELLO = 1;
+	private static final byte SETUP = 2;
+	private static final byte BATCH = 3;
+	private static final byte RESULT = 4;
+	private static final byte HEARTBEAT = 5;
+
+	/* Version of the messages, sent in HELLO. */
+	private static final int PROTOCOL = 2;
+
+	static final int HEARTBEAT_MILLIS = 1000;
+	static final int TIMEOUT_MILLIS = 10000;
+
+	/* Batches in flight per core of a worker, so that its cores do not wait
+	 * for the next batch to arrive. */
+	private static final int WINDOW = 2;
+
+	/* The games of one individual for one round of evaluate. */
+	private static class Batch {
+		final int id;
+		final Round round;
+		final PlayerSkeleton.Individual in;
+		final int firstGame;
+		final long[] seeds;
+
+		Batch(int id, Round round, PlayerSkeleton.Individual in, int firstGame, long[] seeds) {
+			this.id = id;
+			this.round = round;
+			this.in = in;
+			this.firstGame = firstGame;
+			this.seeds = seeds;
+		}
+	}
+
+	/* One call to Coordinator.play, and the number of its batches that are not done. */
+	private static class Round {
+		int remaining;
+	}
+
+	/**
+	 * Accepts workers and hands them the batches of evaluate.
+	 */
+	static class Coordinator {
+		private final ServerSocket server;
+		private final PlayerSkeleton player;
+
+		/* Batches that no worker is playing, the ones to resend first in front. */
+		private final LinkedBlockingDeque<Batch> pending = new LinkedBlockingDeque<Batch>();
+		/* Batches that are not done, by id. Several rounds can be played at
+		 * the same time (by the islands of genetic, see PlayerSkeleton.islands). */
+		private final Map<Integer, Batch> unfinished = new HashMap<Integer, Batch>();
+		private int nextId;
+
+		/**
+		 * Listen for workers on the given port.
+		 * @param player The player running genetic, which decides the seeds
+		 *               and the length of the games.
+		 */
+		Coordinator(int port, PlayerSkeleton player) throws IOException {
+			this.server = new ServerSocket(port);
+			this.player = player;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					accept();
+				}
+			}, "coordinator");
+			t.setDaemon(true);
+			t.start();
+			System.out.println("Waiting for workers on port " + server.getLocalPort() + ".");
+		}
+
+		private void accept() {
+			while(true) {
+				Socket socket;
+				try {
+					socket = server.accept();
+				} catch(IOException e) {
+					e.printStackTrace();
+					return;
+				}
+				try {
+					new Link(socket).start();
+				} catch(IOException e) {
+					System.out.println("Worker " + socket.getRemoteSocketAddress() + " rejected: " + e + ".");
+					try {
+						socket.close();
+					} catch(IOException e2) {
+						//already closed
+					}
+				}
+			}
+		}
+
+		/**
+		 * Have the workers play the games number firstGame to firstGame+numGames-1
+		 * of every individual of gen, and store the rows cleared in
+		 * Individual.games. Returns once every game is finished.
+		 */
+		void play(PlayerSkeleton.Individual[] gen, int firstGame, int numGames) throws InterruptedException {
+			Round round = new Round();
+			synchronized(this) {
+				round.remaining = gen.length;
+				for(PlayerSkeleton.Individual in : gen) {
+					long[] s = new long[numGames];
+					for(int i = 0 ; i < numGames ; i++)
+						s[i] = player.gameSeed(in, firstGame + i);
+					Batch b = new Batch(nextId++, round, in, firstGame, s);
+					unfinished.put(b.id, b);
+					pending.add(b);
+				}
+				while(round.remaining > 0)
+					wait();
+			}
+		}
+
+		/* Store the results of a batch, unless another worker sent them already. */
+		private synchronized void finish(int id, int[] rows) {
+			Batch b = unfinished.remove(id);
+			if(b == null)
+				return;
+			System.arraycopy(rows, 0, b.in.games, b.firstGame, rows.length);
+			if(--b.round.remaining == 0)
+				notifyAll();
+		}
+
+		/* Whether the batch still has to be played. */
+		private synchronized boolean isPending(Batch b) {
+			return unfinished.get(b.id) == b;
+		}
+
+		/**
+		 * Connection to one worker. The sender thread takes batches from
+		 * pending while the worker has room for them, and the receiver
+		 * thread reads its results and heartbeats.
+		 */
+		private class Link {
+			private final Socket socket;
+			private final Map<Integer, Batch> inFlight = new HashMap<Integer, Batch>();
+			private int window;
+			private boolean closed;
+			private DataOutputStream out;
+
+			Link(Socket socket) {
+				this.socket = socket;
+			}
+
+			void start() throws IOException {
+				socket.setSoTimeout(TIMEOUT_MILLIS);
+				socket.setTcpNoDelay(true);
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				if(in.readByte() != HELLO)
+					throw new IOException("Expected HELLO from " + socket.getRemoteSocketAddress());
+				int version = in.readInt();
+				if(version != PROTOCOL)
+					throw new IOException("Protocol version " + version + ", expected " + PROTOCOL);
+				int cores = in.readInt();
+				if(cores <= 0)
+					throw new IOException("Invalid number of cores " + cores);
+				window = WINDOW * cores;
+				out.writeByte(SETUP);
+				out.writeInt(player.maxPieces);
+				out.writeUTF(Features.names(player.featureSet));
+				out.flush();
+				System.out.println("Worker " + socket.getRemoteSocketAddress() + " joined (" + window / WINDOW + " cores).");
+
+				Thread receiver = new Thread(new Runnable() {
+					public void run() {
+						receive(in);
+					}
+				}, "receiver " + socket.getRemoteSocketAddress());
+				Thread sender = new Thread(new Runnable() {
+					public void run() {
+						send();
+					}
+				}, "sender " + socket.getRemoteSocketAddress());
+				receiver.setDaemon(true);
+				sender.setDaemon(true);
+				receiver.start();
+				sender.start();
+			}
+
+			private void send() {
+				try {
+					while(true) {
+						synchronized(this) {
+							while(!closed && inFlight.size() >= window)
+								wait();
+							if(closed)
+								return;
+						}
+						Batch b = pending.take();
+						if(!isPending(b))
+							continue;
+						synchronized(this) {
+							if(closed) {
+								pending.addFirst(b);
+								return;
+							}
+							inFlight.put(b.id, b);
+						}
+						out.writeByte(BATCH);
+						out.writeInt(b.id);
+						for(float w : b.in.features)
+							out.writeFloat(w);
+						out.writeInt(b.seeds.length);
+						for(long seed : b.seeds)
+							out.writeLong(seed);
+						out.flush();
+					}
+				} catch(IOException e) {
+					close(e.toString());
+				} catch(InterruptedException e) {
+					close(e.toString());
+				}
+			}
+
+			private void receive(DataInputStream in) {
+				try {
+					while(true) {
+						byte type = in.readByte();
+						if(type == HEARTBEAT)
+							continue;
+						if(type != RESULT)
+							throw new IOException("Unexpected message " + type);
+						int id = in.readInt();
+						int count = in.readInt();
+						Batch b;
+						synchronized(this) {
+							b = inFlight.get(id);
+						}
+						if(b == null)
+							throw new IOException("Result of batch " + id + ", which was not sent");
+						if(count != b.seeds.length)
+							throw new IOException(count + " results for the " + b.seeds.length + " games of batch " + id);
+						int[] rows = new int[count];
+						for(int i = 0 ; i < rows.length ; i++)
+							rows[i] = in.readInt();
+						synchronized(this) {
+							inFlight.remove(id);
+							notifyAll();
+						}
+						finish(id, rows);
+					}
+				} catch(SocketTimeoutException e) {
+					close("no heartbeat for " + TIMEOUT_MILLIS + " ms");
+				} catch(IOException e) {
+					close(e.toString());
+				} catch(RuntimeException e) {
+					close(e.toString());
+				}
+			}
+
+			/* Drop this worker, and give its unfinished batches to the others. */
+			private void close(String reason) {
+				synchronized(this) {
+					if(closed)
+						return;
+					closed = true;
+					for(Batch b : inFlight.values())
+						if(isPending(b))
+							pending.addFirst(b);
+					inFlight.clear();
+					notifyAll();
+				}
+				try {
+					socket.close();
+				} catch(IOException e) {
+					//already closed
+				}
+				System.out.println("Worker " + socket.getRemoteSocketAddress() + " lost: " + reason + ".");
+			}
+		}
+	}
+
+	/**
+	 * Plays the batches sent by a coordinator until it closes the connection.
+	 */
+	static class Worker {
+		private final PlayerSkeleton player;
+		private final ForkJoinPool pool;
+		private DataOutputStream out;
+
+		/* Each thread of the pool plays all its games on its own state. */
+		private final ThreadLocal<PlayerSkeleton.StateEx> workerState = new ThreadLocal<PlayerSkeleton.StateEx>() {
+			@Override
+			protected PlayerSkeleton.StateEx initialValue() {
+				return player.new StateEx();
+			}
+		};
+
+		Worker(PlayerSkeleton player, int threads) {
+			this.player = player;
+			this.pool = new ForkJoinPool(threads);
+		}
+
+		void run(String host, int port) throws IOException {
+			Socket socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			synchronized(out) {
+				out.writeByte(HELLO);
+				out.writeInt(PROTOCOL);
+				out.writeInt(pool.getParallelism());
+				out.flush();
+			}
+			if(in.readByte() != SETUP)
+				throw new IOException("Expected SETUP from the coordinator");
+			player.maxPieces = in.readInt();
+			player.featureSet = Features.parse(in.readUTF());
+
+			Thread heartbeat = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while(true) {
+							Thread.sleep(HEARTBEAT_MILLIS);
+							synchronized(out) {
+								out.writeByte(HEARTBEAT);
+								out.flush();
+							}
+						}
+					} catch(IOException e) {
+						//the coordinator is gone, the main loop stops too
+					} catch(InterruptedException e) {
+						//stopped
+					}
+				}
+			}, "heartbeat");
+			heartbeat.setDaemon(true);
+			heartbeat.start();
+
+			long batches = 0;
+			try {
+				while(true) {
+					if(in.readByte() != BATCH)
+						throw new IOException("Expected BATCH from the coordinator");
+					int id = in.readInt();
+					float[] weights = new float[player.featureSet.length];
+					for(int i = 0 ; i < weights.length ; i++)
+						weights[i] = in.readFloat();
+					long[] seeds = new long[in.readInt()];
+					for(int i = 0 ; i < seeds.length ; i++)
+						seeds[i] = in.readLong();
+					pool.execute(new BatchTask(id, weights, seeds));
+					batches++;
+				}
+			} catch(IOException e) {
+				System.out.println("Coordinator gone after " + batches + " batches: " + e);
+			} finally {
+				heartbeat.interrupt();
+				socket.close();
+				pool.shutdownNow();
+			}
+		}
+
+		/* Plays the games of a batch, split in halves like GameTask,
+		 * then sends their results. */
+		private class BatchTask extends RecursiveAction {
+			private static final long serialVersionUID = 1871062474128093214L;
+
+			private final int id;
+			private final float[] weights;
+			private final long[] seeds;
+
+			BatchTask(int id, float[] weights, long[] seeds) {
+				this.id = id;
+				this.weights = weights;
+				this.seeds = seeds;
+			}
+
+			@Override
+			protected void compute() {
+				final PlayerSkeleton.Individual in = player.new Individual(false);
+				System.arraycopy(weights, 0, in.features, 0, weights.length);
+				invokeAll(new GameRange(in, 0, seeds.length));
+
+				try {
+					synchronized(out) {
+						out.writeByte(RESULT);
+						out.writeInt(id);
+						out.writeInt(seeds.length);
+						for(int i = 0 ; i < seeds.length ; i++)
+							out.writeInt(in.games[i]);
+						out.flush();
+					}
+				} catch(IOException e) {
+					//the coordinator is gone, the main loop stops too
+				}
+			}
+
+			private class GameRange extends RecursiveAction {
+				private static final long serialVersionUID = -4302558716125405262L;
+
+				private final PlayerSkeleton.Individual in;
+				private final int from, to;
+
+				GameRange(PlayerSkeleton.Individual in, int from, int to) {
+					this.in = in;
+					this.from = from;
+					this.to = to;
+				}
+
+				@Override
+				protected void compute() {
+					if(to - from > 1) {
+						int middle = (from + to) >>> 1;
+						invokeAll(new GameRange(in, from, middle), new GameRange(in, middle, to));
+						return;
+					}
+					PlayerSkeleton.StateEx state = workerState.get();
+					state.reset(new PieceSource.Seeded(seeds[from]));
+					in.games[from] = in.play(state, false);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * The features a board can be evaluated with. A feature set is an int[] of
+ * feature numbers: the heuristics vector of StateEx and the weights of an
+ * Individual have one value per feature of the set, in its order.
+ *
+ * The first four features are maintained incrementally by StateEx.testMove,
+ * from the heuristics of the board before the move. The others are computed
+ * after placing the piece, by a single scan of the board (StateEx.scanBoard),
+ * which computes all of them at once, whichever are in the set. The
+ * reference of java PlayerSkeleton -t computes them one cell at a time
+ * instead (StateEx.naiveFeatures).
+ */
+class Features {
+	/* Rows cleared by the move. */
+	static final int ROWS_CLEARED = 0;
+	/* Empty cells with a filled cell above them in their column. */
+	static final int HOLES = 1;
+	/* Sum of the differences of height of neighbouring columns. */
+	static final int BUMPINESS = 2;
+	/* Sum of the heights of the columns. */
+	static final int AGGREGATE_HEIGHT = 3;
+	/* Changes between filled and empty cells along each row, walls being
+	 * filled, from the bottom row to the highest filled row. */
+	static final int ROW_TRANSITIONS = 4;
+	/* Changes between filled and empty cells up each column, the floor being
+	 * filled, up to the highest filled row and the empty row above it. */
+	static final int COLUMN_TRANSITIONS = 5;
+	/* Cumulative depth of the wells: an empty cell above the top of its
+	 * column, with both neighbours filled (or a wall), counts 1 if it is the
+	 * top cell of its well, 2 if it is the next one, and so on. */
+	static final int WELLS = 6;
+	/* Row of the middle of the piece that was placed. */
+	static final int LANDING_HEIGHT = 7;
+	/* Rows cleared times the cells of the piece in them. */
+	static final int ERODED_CELLS = 8;
+	/* Filled cells above the holes, summed over the holes. */
+	static final int HOLE_DEPTH = 9;
+
+	static final int COUNT = 10;
+
+	/* Names of the features on the command line. */
+	private static final String[] NAMES = {
+		"rows", "holes", "bumpiness", "height",
+		"rowtrans", "coltrans", "wells", "landing", "eroded", "holedepth"
+	};
+
+	/* Whether more of the feature is better: random weights are positive
+	 * for these features, and negative for the others. */
+	private static final boolean[] REWARD = {
+		true, false, false, false,
+		false, false, false, false, true, false
+	};
+
+	/* Weights of the default individual (the Lee Yuan weights for the first
+	 * four features), in the order of the features. */
+	private static final float[] DEFAULT_WEIGHTS = {
+		0.760666f, -0.35663f, -0.184483f, -0.510066f,
+		0f, 0f, 0f, 0f, 0f, 0f
+	};
+
+	/* The original set, with which the default weights were found. */
+	static final int[] DEFAULT = {ROWS_CLEARED, HOLES, BUMPINESS, AGGREGATE_HEIGHT};
+
+	/* Parse a comma-separated list of feature names. */
+	static int[] parse(String names) {
+		String[] parts = names.split(",");
+		int[] set = new int[parts.length];
+		for(int i = 0 ; i < parts.length ; i++) {
+			set[i] = -1;
+			for(int f = 0 ; f < COUNT ; f++)
+				if(NAMES[f].equals(parts[i].trim()))
+					set[i] = f;
+			if(set[i] == -1)
+				throw new IllegalArgumentException("Unknown feature " + parts[i] + ", expected one of " + String.join(",", NAMES));
+		}
+		return set;
+	}
+
+	/* The comma-separated names of a set, as read by parse. */
+	static String names(int[] set) {
+		StringBuilder s = new StringBuilder();
+		for(int i = 0 ; i < set.length ; i++)
+			s.append(i > 0 ? "," : "").append(NAMES[set[i]]);
+		return s.toString();
+	}
+
+	/* Position of feature in set, or -1 if it is not in it. */
+	static int indexOf(int[] set, int feature) {
+		for(int i = 0 ; i < set.length ; i++)
+			if(set[i] == feature)
+				return i;
+		return -1;
+	}
+
+	/* Whether some feature of set needs StateEx.scanBoard. */
+	static boolean needsScan(int[] set) {
+		for(int f : set)
+			if(f > AGGREGATE_HEIGHT)
+				return true;
+		return false;
+	}
+
+	static boolean isReward(int feature) {
+		return REWARD[feature];
+	}
+
+	static float defaultWeight(int feature) {
+		return DEFAULT_WEIGHTS[feature];
+	}
+}
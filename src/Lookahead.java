@@ -0,0 +1,164 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Two-piece search. The player does not see the piece that comes after the
+ * current one, so every placement of the current piece is valued by the
+ * expectation, over the 7 equally likely next pieces, of the score of the
+ * best placement of that next piece:
+ *
+ *   value(m) = rowsCleared(m) * w[ROWS_CLEARED] + 1/7 * sum_p max_m' score(m, p, m')
+ *
+ * (the first term is 0 if ROWS_CLEARED is not in the feature set of the player)
+ *
+ * where score is the greedy evaluation (StateEx.scoreMoves) of the board after
+ * m and m'. The search is kept affordable by:
+ * - playing m on a copy of the bitboard only (StateEx.copyBoard), never
+ *   on a copy of the whole state;
+ * - a beam: the placements of the current piece are ordered by their
+ *   greedy score, and only the beam best ones are searched. This is a
+ *   heuristic cut, not a pruning of dominated placements: a placement
+ *   outside the beam can have the best value, and the full search would
+ *   then choose it. Losing placements are never searched;
+ * - searching the candidates in parallel on a ForkJoinPool, one per task.
+ *
+ * When bestMove is itself called from a worker of a ForkJoinPool (games of
+ * the genetic algorithm or of BatchRunner, which are already played in
+ * parallel), the candidates are searched one after the other on that thread.
+ */
+class Lookahead {
+	/* Number of placements of the current piece searched by default. */
+	static final int DEFAULT_BEAM = 8;
+
+	private final PlayerSkeleton player;
+	private final ForkJoinPool pool;
+	private final int beam;
+
+	/* Buffers of a search, allocated once per thread that calls bestMove. */
+	private class Search {
+		int[] order = new int[State.MAX_MOVES];
+		float[] values = new float[State.MAX_MOVES];
+	}
+
+	private final ThreadLocal<Search> searches = new ThreadLocal<Search>() {
+		@Override
+		protected Search initialValue() {
+			return new Search();
+		}
+	};
+
+	/* Board the candidates are played on, one per thread that searches them. */
+	private final ThreadLocal<PlayerSkeleton.StateEx> boards = new ThreadLocal<PlayerSkeleton.StateEx>() {
+		@Override
+		protected PlayerSkeleton.StateEx initialValue() {
+			return player.new StateEx();
+		}
+	};
+
+	/**
+	 * @param pool Where the candidates are searched, or null to search them
+	 *             on the calling thread.
+	 * @param beam Number of placements of the current piece to search.
+	 */
+	Lookahead(PlayerSkeleton player, ForkJoinPool pool, int beam) {
+		this.player = player;
+		this.pool = pool;
+		this.beam = beam;
+	}
+
+	/**
+	 * Search the placements of the current piece of state, with the given weights.
+	 * The state is not modified.
+	 * @return The index of the best move in state.legalMoves().
+	 */
+	int bestMove(PlayerSkeleton.StateEx state, float[] weights) {
+		Search search = searches.get();
+		int[] order = search.order;
+
+		//Greedy score of every placement, and the placements sorted by score
+		state.scoreMoves(weights);
+		float[] scores = state.moveScores;
+		int candidates = 0;
+		for(int i = 0 ; i < state.legalMoves().length ; i++) {
+			if(!state.movePossible[i])
+				continue;
+			float score = scores[i];
+			int j = candidates++;
+			for( ; j > 0 && scores[order[j-1]] < score ; j--)
+				order[j] = order[j-1];
+			order[j] = i;
+		}
+
+		//Every placement loses, or there is nothing to choose from
+		if(candidates == 0)
+			return 0;
+		if(candidates == 1)
+			return order[0];
+
+		candidates = Math.min(candidates, beam);
+		boolean parallel = pool != null && !ForkJoinTask.inForkJoinPool();
+		SearchTask task = new SearchTask(state, weights, search, parallel, 0, candidates);
+		if(parallel)
+			pool.invoke(task);
+		else
+			task.compute();
+
+		int best = 0;
+		for(int i = 1 ; i < candidates ; i++)
+			if(search.values[i] > search.values[best])
+				best = i;
+		return order[best];
+	}
+
+	/* Expected value of the given placement of the current piece of state. */
+	private float value(PlayerSkeleton.StateEx state, float[] weights, int move) {
+		PlayerSkeleton.StateEx board = boards.get();
+		board.copyBoard(state);
+		int[] placement = state.legalMoves()[move];
+		int cleared = board.getRowsCleared();
+		board.makeMove(placement[State.ORIENT], placement[State.SLOT]);
+		cleared = board.getRowsCleared() - cleared;
+
+		float expected = 0;
+		for(int piece = 0 ; piece < State.N_PIECES ; piece++) {
+			board.setNextPiece(piece);
+			expected += board.moveScores[board.scoreMoves(weights)];
+		}
+		int rows = Features.indexOf(player.featureSet, Features.ROWS_CLEARED);
+		return (rows < 0 ? 0 : cleared * weights[rows]) + expected / State.N_PIECES;
+	}
+
+	/* Values a range of the candidates of a search, splitting it in halves
+	 * like PlayerSkeleton.GameTask until there is only one left. */
+	private class SearchTask extends RecursiveAction {
+		private static final long serialVersionUID = 4213466273155930547L;
+
+		private PlayerSkeleton.StateEx state;
+		private float[] weights;
+		private Search search;
+		private boolean parallel;
+		private int from, to;
+
+		public SearchTask(PlayerSkeleton.StateEx state, float[] weights, Search search, boolean parallel, int from, int to) {
+			this.state = state;
+			this.weights = weights;
+			this.search = search;
+			this.parallel = parallel;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(parallel && to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new SearchTask(state, weights, search, true, from, middle),
+						new SearchTask(state, weights, search, true, middle, to));
+				return;
+			}
+			for(int i = from ; i < to ; i++)
+				search.values[i] = value(state, weights, search.order[i]);
+		}
+	}
+}
@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Live metrics of a training run. The counters are updated once per game
+ * or per generation, never in testMove, and only with LongAdder (striped
+ * per thread, no locks) or volatile writes, so they cost nothing next to a
+ * game. They are read when they are exported:
+ * - over JMX, as the MBean tetris:type=Metrics (see View);
+ * - over HTTP, at http://localhost:port/metrics, in the Prometheus text format
+ *   (on the loopback interface, unless another host is given, see start).
+ *
+ * Rates (games/s, pieces/s, allocation rate) are left to the reader, from
+ * the counters and the time between two reads.
+ */
+public class Metrics {
+
+	/* Upper bounds of the buckets of the game duration histogram, in seconds. */
+	private static final double[] DURATION_BUCKETS = {0.001, 0.01, 0.1, 1, 10, 60};
+
+	private static final LongAdder games = new LongAdder();
+	private static final LongAdder pieces = new LongAdder();
+	private static final LongAdder rows = new LongAdder();
+	private static final LongAdder gameNanos = new LongAdder();
+	//Games that took at most DURATION_BUCKETS[i] seconds (not cumulative)
+	private static final LongAdder[] gameBuckets = new LongAdder[DURATION_BUCKETS.length + 1];
+	static {
+		for(int i = 0 ; i < gameBuckets.length ; i++)
+			gameBuckets[i] = new LongAdder();
+	}
+
+	private static final LongAdder generations = new LongAdder();
+	private static volatile double lastGenerationSeconds;
+	private static volatile double bestFitness;
+	private static volatile double meanFitness;
+	private static volatile double variableMutation;
+
+	//Pool whose utilization is reported, if any, and the slots of the games
+	//played on virtual threads, if they are
+	private static volatile ForkJoinPool pool;
+	private static volatile Semaphore slots;
+	//HTTP server of the metrics, if started
+	private static HttpServer server;
+
+	/* Count a game that has just finished. */
+	static void gameFinished(long nanos, int gamePieces, int gameRows) {
+		games.increment();
+		pieces.add(gamePieces);
+		rows.add(gameRows);
+		gameNanos.add(nanos);
+		int bucket = 0;
+		double seconds = nanos / 1e9;
+		while(bucket < DURATION_BUCKETS.length && seconds > DURATION_BUCKETS[bucket])
+			bucket++;
+		gameBuckets[bucket].increment();
+	}
+
+	/* Record a generation (or, without generations, a report) that has just finished.
+	 * The fitnesses are in rows per game. */
+	static void generationFinished(long nanos, double best, double mean, double mutation) {
+		generations.increment();
+		lastGenerationSeconds = nanos / 1e9;
+		bestFitness = best;
+		meanFitness = mean;
+		variableMutation = mutation;
+	}
+
+	/**
+	 * Export the metrics over JMX and over HTTP at address, which is either a
+	 * port, on the loopback interface only, or host:port to listen on another
+	 * interface (0.0.0.0:port for all of them). Report the utilization of the
+	 * given pool. If cpuSlots is not null, the games run on virtual threads
+	 * instead, each holding a permit of cpuSlots (one per thread of the pool):
+	 * the utilization is the fraction of the permits held, and every HTTP
+	 * request is handled on its own virtual thread.
+	 */
+	static void start(String address, ForkJoinPool workers, Semaphore cpuSlots) throws IOException {
+		pool = workers;
+		slots = cpuSlots;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new StandardMBean(new ViewImpl(), View.class), new ObjectName("tetris:type=Metrics"));
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+
+		int colon = address.lastIndexOf(':');
+		InetSocketAddress bind = colon < 0
+				? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address))
+				: new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+		server = HttpServer.create(bind, 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		if(cpuSlots != null)
+			server.setExecutor(VirtualThreads.perTask());
+		server.start();
+		System.out.println("Metrics at http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/metrics");
+	}
+
+	/* Stop the HTTP server, whose thread would keep the JVM running. */
+	static void stop() {
+		if(server != null)
+			server.stop(0);
+		server = null;
+	}
+
+	/* Fraction of the threads of the pool (or of the slots of the virtual
+	 * threads) that are playing, or 0 without a pool. */
+	private static double utilization() {
+		ForkJoinPool p = pool;
+		if(p == null)
+			return 0;
+		Semaphore s = slots;
+		int busy = s != null ? p.getParallelism() - s.availablePermits() : p.getActiveThreadCount();
+		return busy / (double) p.getParallelism();
+	}
+
+	/* Bytes allocated so far by the live threads, or -1 if the JVM cannot tell. */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		long total = 0;
+		for(long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds()))
+			if(bytes > 0)
+				total += bytes;
+		return total;
+	}
+
+	/* Every metric, in the Prometheus text format. */
+	static String prometheus() {
+		StringBuilder s = new StringBuilder();
+		counter(s, "tetris_games_total", "Games played.", games.sum());
+		counter(s, "tetris_pieces_total", "Pieces placed in the games played.", pieces.sum());
+		counter(s, "tetris_rows_total", "Rows cleared in the games played.", rows.sum());
+
+		s.append("# HELP tetris_game_duration_seconds Duration of a game.\n");
+		s.append("# TYPE tetris_game_duration_seconds histogram\n");
+		long cumulative = 0;
+		for(int i = 0 ; i < gameBuckets.length ; i++) {
+			cumulative += gameBuckets[i].sum();
+			String le = i < DURATION_BUCKETS.length ? Double.toString(DURATION_BUCKETS[i]) : "+Inf";
+			s.append("tetris_game_duration_seconds_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+		}
+		s.append("tetris_game_duration_seconds_sum ").append(format(gameNanos.sum() / 1e9)).append('\n');
+		s.append("tetris_game_duration_seconds_count ").append(cumulative).append('\n');
+
+		counter(s, "tetris_generations_total", "Generations evaluated.", generations.sum());
+		gauge(s, "tetris_generation_seconds", "Wall time of the last generation.", lastGenerationSeconds);
+		gauge(s, "tetris_best_fitness", "Rows per game of the best individual of the last generation.", bestFitness);
+		gauge(s, "tetris_mean_fitness", "Mean rows per game of the last generation.", meanFitness);
+		gauge(s, "tetris_mutation_rate", "Current mutation rate (variable_mutation).", variableMutation);
+		gauge(s, "tetris_worker_utilization", "Fraction of the worker threads playing games.", utilization());
+
+		long gcCount = 0, gcMillis = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(gc.getCollectionCount(), 0);
+			gcMillis += Math.max(gc.getCollectionTime(), 0);
+		}
+		counter(s, "tetris_gc_collections_total", "Garbage collections.", gcCount);
+		s.append("# HELP tetris_gc_seconds_total Time spent in garbage collections.\n");
+		s.append("# TYPE tetris_gc_seconds_total counter\n");
+		s.append("tetris_gc_seconds_total ").append(format(gcMillis / 1e3)).append('\n');
+		gauge(s, "tetris_allocated_bytes", "Bytes allocated by the live threads.", allocatedBytes());
+		return s.toString();
+	}
+
+	private static void counter(StringBuilder s, String name, String help, long value) {
+		s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		s.append("# TYPE ").append(name).append(" counter\n");
+		s.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder s, String name, String help, double value) {
+		s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		s.append("# TYPE ").append(name).append(" gauge\n");
+		s.append(name).append(' ').append(format(value)).append('\n');
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.6g", value);
+	}
+
+	/**
+	 * The metrics as JMX attributes.
+	 */
+	public interface View {
+		long getGames();
+		long getPieces();
+		long getRows();
+		double getMeanGameSeconds();
+		long getGenerations();
+		double getLastGenerationSeconds();
+		double getBestFitness();
+		double getMeanFitness();
+		double getMutationRate();
+		double getWorkerUtilization();
+		long getAllocatedBytes();
+	}
+
+	private static class ViewImpl implements View {
+		public long getGames() { return games.sum(); }
+		public long getPieces() { return pieces.sum(); }
+		public long getRows() { return rows.sum(); }
+		public double getMeanGameSeconds() { return gameNanos.sum() / 1e9 / Math.max(games.sum(), 1); }
+		public long getGenerations() { return generations.sum(); }
+		public double getLastGenerationSeconds() { return lastGenerationSeconds; }
+		public double getBestFitness() { return bestFitness; }
+		public double getMeanFitness() { return meanFitness; }
+		public double getMutationRate() { return variableMutation; }
+		public double getWorkerUtilization() { return utilization(); }
+		public long getAllocatedBytes() { return allocatedBytes(); }
+	}
+}
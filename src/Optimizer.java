@@ -0,0 +1,49 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A training engine that is not the genetic algorithm. PlayerSkeleton.optimize
+ * runs it one generation at a time: ask for the weights of the candidates of
+ * the generation, have them play their games like the individuals of genetic
+ * (PlayerSkeleton.evaluate, so the worker pool, common random numbers, racing,
+ * shared boards and distributed workers all apply), then tell the optimizer
+ * their fitnesses so that it can update its search distribution.
+ *
+ * The moves only depend on the direction of the weights, not on their length,
+ * so the candidates are normalized to unit length before they play. The
+ * optimizers do not need to know it: their fitness is the same either way.
+ */
+interface Optimizer {
+	/* Number of candidates of every generation. */
+	int populationSize();
+
+	/* Number of the best candidates that update the distribution. With racing,
+	 * at least that many candidates play all their games. */
+	int parents();
+
+	/* Sample the weights of the candidates of the next generation. */
+	float[][] ask();
+
+	/* Update the distribution from the fitnesses of the candidates returned
+	 * by the last call to ask: fitnesses[i] is the fitness of candidates[i]. */
+	void tell(float[][] candidates, float[] fitnesses);
+
+	/* Current mean of the distribution, the optimizer's best guess. */
+	float[] mean();
+
+	/* One-line summary of the distribution, for the progress reports. */
+	String describe();
+
+	/* Indices of the candidates, from the largest fitness to the smallest. */
+	static Integer[] ranking(final float[] fitnesses) {
+		Integer[] order = new Integer[fitnesses.length];
+		for(int i = 0 ; i < order.length ; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Float.compare(fitnesses[b], fitnesses[a]);
+			}
+		});
+		return order;
+	}
+}
@@ -0,0 +1,46 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Where the pieces of a game come from. A State asks its piece source
+ * for a new piece every time a move is made.
+ */
+public interface PieceSource {
+	
+	//returns the next piece, 0 to State.N_PIECES-1
+	public int nextPiece();
+	
+	/**
+	 * Uniformly random pieces from the random generator of the current
+	 * thread. Nothing is shared between threads, so many games can run
+	 * in parallel without contending on a single generator.
+	 */
+	public static class Uniform implements PieceSource {
+		public int nextPiece() {
+			return ThreadLocalRandom.current().nextInt(State.N_PIECES);
+		}
+	}
+	
+	/**
+	 * Uniformly random pieces from a seeded generator. Two sources with
+	 * the same seed give the same sequence of pieces, so games played
+	 * with them can be replayed and compared.
+	 */
+	public static class Seeded implements PieceSource {
+		private final long seed;
+		private final SplittableRandom random;
+		
+		public Seeded(long seed) {
+			this.seed = seed;
+			this.random = new SplittableRandom(seed);
+		}
+		
+		public long getSeed() {
+			return seed;
+		}
+		
+		public int nextPiece() {
+			return random.nextInt(State.N_PIECES);
+		}
+	}
+}
@@ -1,71 +1,202 @@
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PlayerSkeleton {
 	 
-	/* Number of features and feature indices in the vector. */
-	private final static int NUM_FEATURES = 4;
-	private final static int ROWS_CLEARED = 0;
-	private final static int HOLES = 1;
-	private final static int BUMPINESS = 2;
-	private final static int AGGREGATE_HEIGHT = 3;
+	/* Features the boards are evaluated with (see Features). The heuristics
+	 * of a board and the weights of an individual are in this order. It must
+	 * be set before any state or individual is created. */
+	int[] featureSet = Features.DEFAULT;
 	
 	private static Random RANDOM = new Random();
 	
 	/* Each individual plays this number of games per generations. */
 	private final static int NUM_GAMES_PER_GEN = 20;
 	
-	private PriorityQueue<Individual> leaderboard;
+	/* Worker threads computing the fitness of individuals. There is one
+	 * per core, and the same pool is used for every generation. */
+	private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 	
-	/**
-	 * A pair of integers. Java does not provide a generic pair class.
-	 */
-	private class Coord {
-		public int r, c;
-		public Coord(int _r, int _c) {
-			r = _r;
-			c = _c;
+	/* The games of a generation are played with seeded sequences of pieces,
+	 * derived from the generationSeed of its individuals (see gameSeed). With common random numbers
+	 * (commonSeeds), the i-th game of every individual uses the same sequence,
+	 * so that differences in fitness come from the weights and not from luck. */
+	private boolean commonSeeds = false;
+	
+	/* Options to bound the time taken by a generation. If maxPieces is not 0,
+	 * every game stops after that many pieces. The rows cleared in a capped
+	 * game are bounded, and still reward both surviving and clearing rows.
+	 * If racing is true, the games of a generation are played in rounds
+	 * (successive halving): after each round, only the best half of the
+	 * individuals go on to play more games (see evaluate). */
+	int maxPieces = 0;
+	private boolean racing = false;
+	
+	/* If sharedBoards is true (with common random numbers), the individuals of
+	 * a generation play each of their games in lockstep (see LockstepTask).
+	 * The individuals that reach the same board at the same turn share one
+	 * extraction of the features of its moves, and only score them with their
+	 * own weights. lockstepMoves and lockstepPasses count the moves chosen and
+	 * the feature extractions done that way. */
+	private boolean sharedBoards = false;
+	private final LongAdder lockstepMoves = new LongAdder();
+	private final LongAdder lockstepPasses = new LongAdder();
+	
+	/* If lookahead is set, moves are chosen by a two-piece search
+	 * (see Lookahead) instead of greedily on the current piece only. */
+	Lookahead lookahead;
+	
+	/* If cacheSize is not 0, the features of the boards tested by testMove
+	 * are kept in a TranspositionCache of that many entries per thread. */
+	int cacheSize = 0;
+	private final ThreadLocal<TranspositionCache> caches = new ThreadLocal<TranspositionCache>() {
+		@Override
+		protected TranspositionCache initialValue() {
+			return new TranspositionCache(cacheSize, featureSet.length);
 		}
-	}
+	};
+	
+	/* If numIslands is more than 1, genetic is run as an island model (see
+	 * islands), with migration every migrateEvery generations. */
+	private int numIslands = 1;
+	private int migrateEvery = 10;
+	private final static int MIGRANTS = 2;
+	
+	/* If coordinator is set, the games of genetic are played by the worker
+	 * processes connected to it (see Distributed). */
+	private Distributed.Coordinator coordinator;
+	
+	/* If checkpointFile is set, the state of genetic is saved to it every
+	 * checkpointEvery generations (see Checkpoint). The file is written by
+	 * a background thread, so that the next generation does not wait for it.
+	 * If resumeFrom is set, genetic continues from that checkpoint. */
+	private File checkpointFile;
+	private int checkpointEvery = 1;
+	private ExecutorService checkpointWriter;
+	private Checkpoint resumeFrom;
+	
+	/* Each worker thread plays all its games on its own state, so that
+	 * the buffers used to test moves are allocated only once per thread. */
+	private final ThreadLocal<StateEx> workerState = new ThreadLocal<StateEx>() {
+		@Override
+		protected StateEx initialValue() {
+			return new StateEx();
+		}
+	};
+	
+	/* If virtualThreads is true, evaluate plays the games of every individual
+	 * on its own virtual thread (see VirtualThreads) instead of on the pool,
+	 * and the checkpoints, the metrics server and the steady-state callbacks
+	 * also run on virtual threads. At most cpuSlots games run at once, each
+	 * on a state taken from freeStates, which has its own cache since it is
+	 * used by many threads, one after the other. */
+	boolean virtualThreads = false;
+	private final Semaphore cpuSlots = new Semaphore(pool.getParallelism());
+	private final Queue<StateEx> freeStates = new ConcurrentLinkedQueue<StateEx>();
+	
+	/* Same for the lockstep games, which need one state per individual. */
+	private final ThreadLocal<StateEx[]> lockstepStates = new ThreadLocal<StateEx[]>() {
+		@Override
+		protected StateEx[] initialValue() {
+			return new StateEx[0];
+		}
+	};
 	
 	/**
 	 * Extended state class. Provides methods to test a move without
 	 * actually making it, and computing heuristic values.
 	 */
-	private class StateEx extends State {
+	class StateEx extends State {
+		/* The buffers below are allocated once and reused by every call to
+		 * testMove, so evaluating a move does not allocate anything. */
 		//Copy of the "top" array from the super-class
 		//This is so that we don't have to modify the original version.
-		int[] topCopy;
+		int[] topCopy = new int[COLS];
 		//Whether a given row is full or not.
-		private boolean[] fullRow;
-		//Coordinates of the piece that was just played.
-		private LinkedList<Coord> piecePosition = new LinkedList<Coord>();
-		int[] latestHeuristics = new int[NUM_FEATURES];
+		private boolean[] fullRow = new boolean[ROWS];
+		//Position of the piece that was just played: the row it landed on,
+		//and its placement (see State.placement) for the bits it filled.
+		private int pieceRow;
+		private int piecePlacement;
+		private int pieceHeight;
+		//The feature set of the player, and whether it needs scanBoard
+		private final int[] set = featureSet;
+		private final boolean scan = Features.needsScan(set);
+		int[] latestHeuristics = new int[set.length];
+		//Value of every feature (not only the ones of the set), by feature number
+		private final int[] all = new int[Features.COUNT];
+		//Per column counters of scanBoard
+		private final int[] filledAbove = new int[COLS];
+		private final int[] wellDepth = new int[COLS];
+		//Boards of naiveFeatures, allocated when testMoveFull first needs them
+		private int[] rowsBefore;
+		private boolean[][] grid;
+		//Heuristics, whether it does not lose, and score of every legal move
+		//of the current piece (see testMoves and scoreMoves).
+		final int[][] moveFeatures = new int[MAX_MOVES][set.length];
+		final boolean[] movePossible = new boolean[MAX_MOVES];
+		final float[] moveScores = new float[MAX_MOVES];
+		
+		/* Heuristics of the current board (without any piece being tested).
+		 * They are refreshed once per move actually made, and testMove only
+		 * computes how the tested piece changes them. */
+		private int baseHoles;
+		private int baseBumpiness;
+		private int baseHeight;
+		
+		//Cache used by testMove, or null
+		private final TranspositionCache cache;
+		
+		/* A state that uses the cache of the thread that creates it. */
+		StateEx() {
+			this(cacheSize > 0 ? caches.get() : null);
+		}
+		
+		/* A state that uses the given cache, or none if it is null. No other
+		 * thread may use the cache while this state is used. */
+		StateEx(TranspositionCache cache) {
+			this.cache = cache;
+		}
+		
+		/* The game on this state is over: count it in the cache statistics. */
+		void gameFinished() {
+			if(cache != null)
+				cache.flush();
+		}
 		
 		//Get the number of holes (empty tiles with at least one full tile above
 		//them in the same column) for the current board.
-		private int getHoles() {
-			int[][] field = getField();
+		int getHoles() {
+			int[] rows = getRows();
 			int holes = 0;
 			
-			/* From the top, go down until we reach a non-empty, non-full-row tile.
-			 * Then, every empty tile is a hole. */
-			for (int col = 0; col < State.COLS; col++){
-				boolean countHoles = false;
-				for(int row = State.ROWS - 1 ; row >= 0 ; row--) {
-					if(!countHoles && field[row][col] != 0 && !fullRow[row])
-						countHoles = true;
-					else if(countHoles && field[row][col] == 0)
-						holes++;
-				}
+			/* From the top, go down and remember in "covered" every column where
+			 * we have seen a non-empty, non-full-row tile. Then, every empty tile
+			 * in a covered column is a hole. */
+			int covered = 0;
+			for(int row = State.ROWS - 1 ; row >= 0 ; row--) {
+				if(fullRow[row])
+					continue;
+				holes += Integer.bitCount(covered & ~rows[row]);
+				covered |= rows[row];
 			}
 
 			return holes;
@@ -73,53 +204,532 @@ public class PlayerSkeleton {
 		
 		/* Obtain the bumpiness (sum of differences between consecutive columns)
 		 * and aggregate height (sum of heights of all columns) of the current board.
-		 * Return a two-element array. First element is the bumpiness, second element
-		 * is the aggregateHeight.
+		 * The results are stored in heuristics.
 		 */
-		private int[] getBumpinessAndHeight() {			
+		private void getBumpinessAndHeight(int[] heuristics) {			
 			int bumpiness = 0;
 			int aggregateHeight = topCopy[0];
 			for (int i = 1; i < topCopy.length; i ++) {
 				bumpiness += Math.abs(topCopy[i] - topCopy[i-1]);
 				aggregateHeight += topCopy[i];
 			}
-			return new int[] {bumpiness, aggregateHeight};
+			heuristics[Features.BUMPINESS] = bumpiness;
+			heuristics[Features.AGGREGATE_HEIGHT] = aggregateHeight;
+		}
+		
+		/* Compute, in one pass over the board from the top row down, every
+		 * feature after the first four (see Features) and store them in
+		 * heuristics, by feature number. The board is the one left by
+		 * dryRunMove or placePiece: the full rows are skipped, as if they had
+		 * been cleared. */
+		private void scanBoard(int[] heuristics) {
+			int[] rows = getRows();
+			int rowTransitions = 0, columnTransitions = 0, wells = 0, holeDepth = 0;
+			//columns with a filled cell above the current row, and columns whose
+			//cells above the current row are all empty
+			int covered = 0;
+			//last row seen (the one above the current row)
+			int above = 0;
+			boolean started = false;
+			Arrays.fill(filledAbove, 0);
+			Arrays.fill(wellDepth, 0);
+			for(int r = ROWS - 1; r >= 0; r--) {
+				if(fullRow[r])
+					continue;
+				int row = rows[r];
+				//the empty rows above the highest filled one are not counted
+				if(!started && row == 0)
+					continue;
+				started = true;
+				
+				//the row with a filled wall on each side
+				int walled = (row << 1) | 1 | (1 << (COLS+1));
+				rowTransitions += Integer.bitCount((walled ^ (walled >>> 1)) & ((1 << (COLS+1)) - 1));
+				columnTransitions += Integer.bitCount(row ^ above);
+				
+				//wells: empty cells above the top of their column, whose left
+				//(bit c of walled) and right (bit c+2) neighbours are filled
+				int well = ~row & ~covered & walled & (walled >>> 2) & FULL_ROW;
+				for(int c = 0; c < COLS; c++) {
+					if((well & (1 << c)) != 0)
+						wells += ++wellDepth[c];
+					else
+						wellDepth[c] = 0;
+				}
+				
+				for(int holes = covered & ~row; holes != 0; holes &= holes-1)
+					holeDepth += filledAbove[Integer.numberOfTrailingZeros(holes)];
+				for(int filled = row; filled != 0; filled &= filled-1)
+					filledAbove[Integer.numberOfTrailingZeros(filled)]++;
+				
+				covered |= row;
+				above = row;
+			}
+			//the floor is filled
+			if(started)
+				columnTransitions += Integer.bitCount(above ^ FULL_ROW);
+			
+			heuristics[Features.ROW_TRANSITIONS] = rowTransitions;
+			heuristics[Features.COLUMN_TRANSITIONS] = columnTransitions;
+			heuristics[Features.WELLS] = wells;
+			heuristics[Features.HOLE_DEPTH] = holeDepth;
+		}
+		
+		/* Features of the piece placed by dryRunMove or placePiece, stored in
+		 * heuristics by feature number. */
+		private void pieceFeatures(int rowsCleared, int[] heuristics) {
+			int[] placements = State.getPlacements();
+			int eroded = 0;
+			for(int i = 0; i < pieceHeight; i++)
+				if(fullRow[pieceRow+i])
+					eroded += Integer.bitCount(placements[piecePlacement+PLACE_ROWS+i]);
+			heuristics[Features.LANDING_HEIGHT] = pieceRow + (pieceHeight-1)/2;
+			heuristics[Features.ERODED_CELLS] = rowsCleared * eroded;
+		}
+		
+		/* Compute the features of scanBoard and pieceFeatures one cell at a
+		 * time, straight from their definitions in Features, and store them in
+		 * heuristics by feature number. The piece of placement p is dropped
+		 * row by row on rowsBefore (the board before the move), and the full
+		 * rows are removed from the result, without using anything computed by
+		 * dryRunMove. Only meant as the reference of testMoveFull. */
+		private void naiveFeatures(int p, int[] heuristics) {
+			int[] placements = State.getPlacements();
+			int pieceRows = placements[p+PLACE_HEIGHT];
+			
+			//Drop the piece from the top until the row below it is blocked
+			int landing = ROWS - pieceRows;
+			while(landing > 0) {
+				boolean fits = true;
+				for(int i = 0; i < pieceRows; i++)
+					if((rowsBefore[landing-1+i] & placements[p+PLACE_ROWS+i]) != 0)
+						fits = false;
+				if(!fits)
+					break;
+				landing--;
+			}
+			
+			//The board after the move, without its full rows
+			int cleared = 0, eroded = 0, height = 0;
+			for(int r = 0; r < ROWS; r++) {
+				int row = rowsBefore[r];
+				int pieceCells = 0;
+				if(r >= landing && r < landing + pieceRows) {
+					row |= placements[p+PLACE_ROWS+r-landing];
+					pieceCells = Integer.bitCount(placements[p+PLACE_ROWS+r-landing]);
+				}
+				if(row == FULL_ROW) {
+					cleared++;
+					eroded += pieceCells;
+					continue;
+				}
+				for(int c = 0; c < COLS; c++)
+					grid[height][c] = (row & (1 << c)) != 0;
+				height++;
+			}
+			for(int r = height; r < ROWS; r++)
+				Arrays.fill(grid[r], false);
+			
+			//Highest row with a filled cell, or -1 if the board is empty
+			int top = -1;
+			for(int r = 0; r < ROWS; r++)
+				for(int c = 0; c < COLS; c++)
+					if(grid[r][c])
+						top = r;
+			
+			int rowTransitions = 0;
+			for(int r = 0; r <= top; r++) {
+				boolean previous = true; //left wall
+				for(int c = 0; c < COLS; c++) {
+					if(grid[r][c] != previous)
+						rowTransitions++;
+					previous = grid[r][c];
+				}
+				if(!previous) //right wall
+					rowTransitions++;
+			}
+			
+			int columnTransitions = 0, wells = 0, holeDepth = 0;
+			for(int c = 0; c < COLS; c++) {
+				//one above the highest filled cell of the column
+				int columnTop = 0;
+				for(int r = 0; r < ROWS; r++)
+					if(grid[r][c])
+						columnTop = r + 1;
+				
+				if(top >= 0) {
+					boolean previous = true; //floor
+					for(int r = 0; r <= top + 1; r++) {
+						boolean filled = r <= top && grid[r][c];
+						if(filled != previous)
+							columnTransitions++;
+						previous = filled;
+					}
+				}
+				
+				int depth = 0;
+				for(int r = ROWS - 1; r >= 0; r--) {
+					boolean left = c == 0 || grid[r][c-1];
+					boolean right = c == COLS - 1 || grid[r][c+1];
+					if(r >= columnTop && left && right)
+						wells += ++depth;
+					else
+						depth = 0;
+				}
+				
+				for(int r = 0; r < columnTop; r++) {
+					if(grid[r][c])
+						continue;
+					for(int above = r + 1; above < columnTop; above++)
+						if(grid[above][c])
+							holeDepth++;
+				}
+			}
+			
+			heuristics[Features.ROW_TRANSITIONS] = rowTransitions;
+			heuristics[Features.COLUMN_TRANSITIONS] = columnTransitions;
+			heuristics[Features.WELLS] = wells;
+			heuristics[Features.HOLE_DEPTH] = holeDepth;
+			heuristics[Features.LANDING_HEIGHT] = landing + (pieceRows-1)/2;
+			heuristics[Features.ERODED_CELLS] = cleared * eroded;
 		}
 		
 		/* Test the given move against the current board. Compute the
 		 * score of the resulting move with the given weights for each
 		 * heuristic. The state itself is not modified. */
-		private float testMove(int orient, int slot, float[] weights) {
-			this.topCopy = Arrays.copyOf(this.getTop(), COLS);
-			this.fullRow = new boolean[ROWS];
-			piecePosition.clear();
+		float testMove(int orient, int slot, float[] weights) {
+			if(!extractFeatures(State.placement(nextPiece, orient, slot), latestHeuristics))
+				return Integer.MIN_VALUE;
+			return score(weights);
+		}
+		
+		/* Test every legal move of the current piece against the board, and
+		 * store the heuristics after legalMoves()[i] in moveFeatures[i], and
+		 * whether it does not lose the game in movePossible[i]. The state
+		 * itself is not modified. Return the number of legal moves. */
+		int testMoves() {
+			int[][] legalMoves = legalMoves();
+			int p = State.placement(nextPiece, legalMoves[0][ORIENT], legalMoves[0][SLOT]);
+			//the placements of a piece are consecutive, in the order of its legal moves
+			for(int i = 0; i < legalMoves.length; i++, p += PLACEMENT_SIZE) {
+				long t = Profiler.ENABLED ? Profiler.start(Profiler.EXTRACT) : 0;
+				movePossible[i] = extractFeatures(p, moveFeatures[i]);
+				if(Profiler.ENABLED) Profiler.stop(Profiler.EXTRACT, t);
+			}
+			return legalMoves.length;
+		}
+		
+		/* Score every legal move of the current piece with the given weights
+		 * (see testMoves), and store the scores in moveScores. The scores are
+		 * computed in one loop over the feature matrix, after the features of
+		 * every move: the same as calling testMove on every move, without its
+		 * setup and its calls in the inner loop. Return the index of the best
+		 * move in legalMoves(), or 0 if every move loses. */
+		int scoreMoves(float[] weights) {
+			long t = Profiler.ENABLED ? Profiler.start(Profiler.MOVES) : 0;
+			testMoves();
+			int best = scoreTestedMoves(weights);
+			if(Profiler.ENABLED) Profiler.stop(Profiler.MOVES, t);
+			return best;
+		}
+		
+		/* Same as scoreMoves, with the features of the last call to testMoves,
+		 * which are not computed again. */
+		int scoreTestedMoves(float[] weights) {
+			long t = Profiler.ENABLED ? Profiler.start(Profiler.SCORE) : 0;
+			int n = legalMoves().length;
+			int best = 0;
+			for(int i = 0; i < n; i++) {
+				int[] features = moveFeatures[i];
+				float score = 0.0f;
+				for(int j = 0; j < features.length; j++)
+					score += features[j] * weights[j];
+				moveScores[i] = movePossible[i] ? score : Integer.MIN_VALUE;
+				if(moveScores[i] > moveScores[best])
+					best = i;
+			}
+			if(Profiler.ENABLED) Profiler.stop(Profiler.SCORE, t);
+			return best;
+		}
+		
+		/* Compute in heuristics the heuristics of the board after the
+		 * placement at index p of State.getPlacements(). Return false, and
+		 * leave heuristics as they are, if the placement loses the game.
+		 * 
+		 * The heuristics are not recomputed from the whole board: we start
+		 * from the heuristics of the current board and only look at the
+		 * columns covered by the piece (and their neighbours for bumpiness).
+		 * Only when the piece clears rows do we have to look at every column. */
+		private boolean extractFeatures(int p, int[] heuristics) {
+			int[] top = getTop();
+			int[] rows = getRows();
+			int[] placements = State.getPlacements();
+			int slot = Integer.numberOfTrailingZeros(placements[p+PLACE_COLUMNS]);
+			int width = placements[p+PLACE_WIDTH];
+			
+			//height if the first column makes contact
+			int height = top[slot]-placements[p+PLACE_BOTTOM];
+			//for each column beyond the first in the piece
+			for(int c = 1; c < width; c++)
+				height = Math.max(height,top[slot+c]-placements[p+PLACE_BOTTOM+c]);
+			
+			//If we lost the game, there are no heuristics for this move.
+			if(height+placements[p+PLACE_HEIGHT] >= ROWS)
+				return false;
+			
+			long key = 0;
+			if(cache != null) {
+				key = TranspositionCache.key(hash, p);
+				if(cache.get(key, heuristics))
+					return true;
+			}
+			
+			int holes = baseHoles;
+			int bumpiness = baseBumpiness;
+			int aggregateHeight = baseHeight;
+			
+			//Remove the bumpiness of the columns that change...
+			int left = Math.max(slot, 1);
+			int right = Math.min(slot+width, COLS-1);
+			for(int c = left; c <= right; c++)
+				bumpiness -= Math.abs(topCopy[c] - topCopy[c-1]);
+			
+			//...every empty tile between the old top and the bottom of the piece
+			//becomes a hole, and the columns grow to the top of the piece...
+			pieceRow = height;
+			piecePlacement = p;
+			pieceHeight = placements[p+PLACE_HEIGHT];
+			for(int i = 0; i < width; i++) {
+				int pieceTop = height+placements[p+PLACE_TOP+i];
+				holes += height+placements[p+PLACE_BOTTOM+i]-top[slot+i];
+				aggregateHeight += pieceTop-top[slot+i];
+				topCopy[slot+i] = pieceTop;
+			}
+			
+			//...and add back their new bumpiness.
+			for(int c = left; c <= right; c++)
+				bumpiness += Math.abs(topCopy[c] - topCopy[c-1]);
+			
+			int rowsCleared = 0;
+			for(int i = 0; i < pieceHeight; i++)
+				if((rows[height+i] | placements[p+PLACE_ROWS+i]) == FULL_ROW)
+					rowsCleared++;
+			
+			//The features that need the piece on the board are computed with
+			//it placed, all at once, then the piece is removed again.
+			if(rowsCleared > 0 || scan)
+				placePiece();
+			
+			all[Features.ROWS_CLEARED] = rowsCleared;
+			if(rowsCleared == 0) {
+				all[Features.HOLES] = holes;
+				all[Features.BUMPINESS] = bumpiness;
+				all[Features.AGGREGATE_HEIGHT] = aggregateHeight;
+				for(int i = 0; i < width; i++)
+					topCopy[slot+i] = top[slot+i];
+			} else {
+				long t = Profiler.ENABLED ? Profiler.start(Profiler.CLEAR_ROWS) : 0;
+				all[Features.HOLES] = holes - clearRows();
+				if(Profiler.ENABLED) Profiler.stop(Profiler.CLEAR_ROWS, t);
+				getBumpinessAndHeight(all);
+				System.arraycopy(top, 0, topCopy, 0, COLS);
+			}
+			
+			if(scan) {
+				scanBoard(all);
+				pieceFeatures(rowsCleared, all);
+			}
+			if(rowsCleared > 0 || scan)
+				undoMove();
+			
+			for(int i = 0; i < set.length; i++)
+				heuristics[i] = all[set[i]];
+			
+			if(cache != null)
+				cache.put(key, heuristics);
+			return true;
+		}
+		
+		//score/evaluation function is dot product of heuristics and weights
+		private float score(float[] weights) {
+			float score = 0.0f;
+			for (int i = 0; i < latestHeuristics.length; i++)
+				score += latestHeuristics[i] * weights[i];
+			
+			return score;
+		}
+		
+		/* Fill the cells of the piece tested by testMove, and mark the rows
+		 * it fills, like dryRunMove. undoMove removes it. */
+		private void placePiece() {
+			int[] rows = getRows();
+			int[] placements = State.getPlacements();
+			for(int i = 0; i < pieceHeight; i++) {
+				rows[pieceRow+i] |= placements[piecePlacement+PLACE_ROWS+i];
+				fullRow[pieceRow+i] = rows[pieceRow+i] == FULL_ROW;
+			}
+		}
+		
+		/* Called by testMove, after placePiece, when the tested piece fills
+		 * some rows. Update topCopy the same way as dryRunMove does, and
+		 * return the number of holes that are not holes anymore: the empty
+		 * tiles of a column that are only covered by the full rows. */
+		private int clearRows() {
+			int[] rows = getRows();
+			
+			//From the top of every column, go down through the full rows
+			//and the empty tiles until we reach a tile that still covers.
+			int uncovered = 0;
+			for(int c = 0; c < COLS; c++) {
+				int r = topCopy[c]-1;
+				while(r >= 0 && (fullRow[r] || (rows[r] & (1 << c)) == 0)) {
+					if(!fullRow[r])
+						uncovered++;
+					r--;
+				}
+			}
+			
+			//check for full rows - starting at the top
+			for(int r = pieceRow+pieceHeight-1; r >= pieceRow; r--) {
+				if(fullRow[r]) {
+					for(int c = 0; c < COLS; c++) {
+						//lower the top
+						topCopy[c]--;
+						while(topCopy[c]>=1 && (rows[topCopy[c]-1] & (1 << c))==0)	topCopy[c]--;
+					}
+				}
+			}
+			
+			return uncovered;
+		}
+		
+		/* Same as testMove, but compute the heuristics from scratch on
+		 * the whole board. This is slower, and is kept as a reference to
+		 * check that testMove gives the same values (see verify). The
+		 * features of scanBoard are computed cell by cell (see naiveFeatures),
+		 * so that they are checked against a separate implementation. */
+		float testMoveFull(int orient, int slot, float[] weights) {
+			System.arraycopy(this.getTop(), 0, topCopy, 0, COLS);
 			
 			int piece = this.nextPiece;
+			if(scan) {
+				if(rowsBefore == null) {
+					rowsBefore = new int[ROWS];
+					grid = new boolean[ROWS][COLS];
+				}
+				System.arraycopy(getRows(), 0, rowsBefore, 0, ROWS);
+			}
 			int rowsCleared = dryRunMove(piece, orient, slot);
 			
-			if(rowsCleared == -1) //If we lost the game, return minimal value for this move.
+			if(rowsCleared == -1) { //If we lost the game, return minimal value for this move.
+				System.arraycopy(this.getTop(), 0, topCopy, 0, COLS);
 				return Integer.MIN_VALUE;
+			}
 			
-			int[] bumpinessAndHeight = getBumpinessAndHeight();
-			latestHeuristics[ROWS_CLEARED] = rowsCleared;
-			latestHeuristics[HOLES] = getHoles();
-			latestHeuristics[BUMPINESS] = bumpinessAndHeight[0];
-			latestHeuristics[AGGREGATE_HEIGHT] = bumpinessAndHeight[1];
+			getBumpinessAndHeight(all);
+			all[Features.ROWS_CLEARED] = rowsCleared;
+			all[Features.HOLES] = getHoles();
+			if(scan)
+				naiveFeatures(State.placement(piece, orient, slot), all);
+			for(int i = 0; i < set.length; i++)
+				latestHeuristics[i] = all[set[i]];
 			
-			//score/evaluation function is dot product of heuristics and weights
-			float score = 0.0f;
-			for (int i = 0; i < NUM_FEATURES; i++)
-				score += latestHeuristics[i] * weights[i];
+			float score = score(weights);
 			
-			//Reset the field
-			int[][] field = getField();
-			for(Coord c: piecePosition)
-					field[c.r][c.c] = 0;
+			undoMove();
+			System.arraycopy(this.getTop(), 0, topCopy, 0, COLS);
 			
 			return score;
 			
 		}
 		
+		/* Reset the field and the full rows after dryRunMove or clearRows.
+		 * topCopy is not reset. */
+		void undoMove() {
+			int[] rows = getRows();
+			int[] placements = State.getPlacements();
+			for(int i = 0; i < pieceHeight; i++) {
+				rows[pieceRow+i] &= ~placements[piecePlacement+PLACE_ROWS+i];
+				fullRow[pieceRow+i] = false;
+			}
+		}
+		
+		/* Make the move, then compute the heuristics of the new board
+		 * that testMove starts from. */
+		@Override
+		public boolean makeMove(int orient, int slot) {
+			long t = Profiler.ENABLED ? Profiler.start(Profiler.MAKE_MOVE) : 0;
+			if(!super.makeMove(orient, slot))
+				return false;
+			
+			long b = Profiler.ENABLED ? Profiler.start(Profiler.BASE) : 0;
+			System.arraycopy(this.getTop(), 0, topCopy, 0, COLS);
+			baseHoles = getHoles();
+			getBumpinessAndHeight(all);
+			baseBumpiness = all[Features.BUMPINESS];
+			baseHeight = all[Features.AGGREGATE_HEIGHT];
+			if(Profiler.ENABLED) Profiler.stop(Profiler.BASE, b);
+			if(Profiler.ENABLED) Profiler.stop(Profiler.MAKE_MOVE, t);
+			return true;
+		}
+		
+		/* Start a new game. The heuristics of the empty board are all 0. */
+		@Override
+		public void reset() {
+			super.reset();
+			Arrays.fill(topCopy, 0);
+			baseHoles = 0;
+			baseBumpiness = 0;
+			baseHeight = 0;
+		}
+		
+		/* Make the board of this state a copy of the board of s, to play
+		 * moves on it without changing s. Only the bitboard and what testMove
+		 * needs are copied: the field and the turn numbers are not. */
+		void copyBoard(StateEx s) {
+			System.arraycopy(s.getRows(), 0, rows, 0, ROWS);
+			System.arraycopy(s.getTop(), 0, getTop(), 0, COLS);
+			System.arraycopy(s.getTop(), 0, topCopy, 0, COLS);
+			baseHoles = s.baseHoles;
+			baseBumpiness = s.baseBumpiness;
+			baseHeight = s.baseHeight;
+			hash = s.hash;
+			nextPiece = s.nextPiece;
+			lost = false;
+		}
+		
+		/* Whether s has the same board as this state. */
+		boolean sameBoard(StateEx s) {
+			return hash == s.hash && Arrays.equals(rows, s.rows);
+		}
+		
+		/* Change the current piece, to test the moves of another piece
+		 * on the same board. */
+		void setNextPiece(int piece) {
+			nextPiece = piece;
+		}
+
+		/* Check that testMove, scoreMoves and testMoveFull agree on the
+		 * heuristics and score of every legal move for the current board. */
+		private boolean checkMoves(float[] weights) {
+			int[] expected = new int[set.length];
+			int[][] legalMoves = legalMoves();
+			scoreMoves(weights);
+			for(int i = 0; i < legalMoves.length; i++) {
+				int[] move = legalMoves[i];
+				float expectedScore = testMoveFull(move[ORIENT], move[SLOT], weights);
+				System.arraycopy(latestHeuristics, 0, expected, 0, set.length);
+				float score = testMove(move[ORIENT], move[SLOT], weights);
+				if(score != expectedScore || moveScores[i] != expectedScore)
+					return false;
+				if(score != Integer.MIN_VALUE && !Arrays.equals(expected, latestHeuristics))
+					return false;
+				if(score != Integer.MIN_VALUE && !Arrays.equals(expected, moveFeatures[i]))
+					return false;
+			}
+			return true;
+		}
+		
 		/* Play the given move on our local copy of the board.
 		 * Return the number of rows cleared by the move, or -1
 		 * if the move makes us lose the game.
@@ -127,7 +737,7 @@ public class PlayerSkeleton {
 		 * Most of the code of this method is the same as "makeMove"
 		 * in the State class.
 		 */
-		private int dryRunMove(int piece, int orient, int slot) {
+		int dryRunMove(int piece, int orient, int slot) {
 			/* Note that here we want to modify the field as little as possible,
 			 * to roll back our changes easily. Copying the field and playing on
 			 * the copy is a very inefficient operation (earlier profiling showed
@@ -138,55 +748,47 @@ public class PlayerSkeleton {
 			 * This is not a problem when computing the heuristics.
 			 */
 			
-			int[][] field = getField();
+			int[] rows = getRows();
+			int[] placements = State.getPlacements();
+			int p = State.placement(piece, orient, slot);
+			int width = placements[p+PLACE_WIDTH];
 			//height if the first column makes contact
-			int height = topCopy[slot]-State.getpBottom()[piece][orient][0];
+			int height = topCopy[slot]-placements[p+PLACE_BOTTOM];
 			//for each column beyond the first in the piece
-			for(int c = 1; c < State.getpWidth()[piece][orient];c++) {
-				height = Math.max(height,topCopy[slot+c]-State.getpBottom()[piece][orient][c]);
+			for(int c = 1; c < width;c++) {
+				height = Math.max(height,topCopy[slot+c]-placements[p+PLACE_BOTTOM+c]);
 			}
 			
 			//If we lost, return -1 for the number of rows cleared.
-			if(height+State.getpHeight()[piece][orient] >= ROWS)
+			if(height+placements[p+PLACE_HEIGHT] >= ROWS)
 				return -1;
 			
-			//for each column in the piece - fill in the appropriate blocks
-			for(int i = 0; i < State.getpWidth()[piece][orient]; i++)
-				for(int h = height+State.getpBottom()[piece][orient][i]; h < height+State.getpTop()[piece][orient][i]; h++) {
-					field[h][i+slot] = -1;
-					//Remember that we modified this to clear it later
-					piecePosition.add(new Coord(h, i+slot));
-				}
+			//Remember where the piece goes to clear it later
+			pieceRow = height;
+			piecePlacement = p;
+			pieceHeight = placements[p+PLACE_HEIGHT];
+			
+			//fill in the rows covered by the piece
+			for(int i = 0; i < pieceHeight; i++)
+				rows[height+i] |= placements[p+PLACE_ROWS+i];
 			
 			//adjust top
-			for(int c = 0; c < State.getpWidth()[piece][orient]; c++) {
-				topCopy[slot+c]=height+State.getpTop()[piece][orient][c];
+			for(int c = 0; c < width; c++) {
+				topCopy[slot+c]=height+placements[p+PLACE_TOP+c];
 			}
 			
-			//check if game ended
-			if(height+State.getpHeight()[piece][orient] >= ROWS)
-				return 0;
-			
 			int rowsCleared = 0;
 			
 			//check for full rows - starting at the top
-			for(int r = height+State.getpHeight()[piece][orient]-1; r >= height; r--) {
-				//check all columns in the row
-				boolean full = true;
-				for(int c = 0; c < COLS; c++) {
-					if(field[r][c] == 0) {
-						full = false;
-						break;
-					}
-				}
+			for(int r = height+pieceHeight-1; r >= height; r--) {
 				//if the row was full - record it and update the top for the columns.
-				if(full) {
+				if(rows[r] == FULL_ROW) {
 					fullRow[r] = true;
 					rowsCleared++;					
 					for(int c = 0; c < COLS; c++) {
 						//lower the top
 						topCopy[c]--;
-						while(topCopy[c]>=1 && field[topCopy[c]-1][c]==0)	topCopy[c]--;
+						while(topCopy[c]>=1 && (rows[topCopy[c]-1] & (1 << c))==0)	topCopy[c]--;
 					}
 				}
 				
@@ -202,10 +804,21 @@ public class PlayerSkeleton {
 	 * state, the features (i.e. weights of the heuristics) and the
 	 * ability to play a game.
 	 */
-	private class Individual implements Comparable<Individual> {
-		public float[] features = new float[NUM_FEATURES];
+	class Individual implements Comparable<Individual> {
+		public float[] features = new float[featureSet.length];
 		public float fitness;
-		public StateEx state = new StateEx();
+		//Rows cleared in each game of the current generation
+		public int[] games = new int[NUM_GAMES_PER_GEN];
+		//Number of games played in the current generation
+		public int gamesPlayed;
+		//Position in the current generation and seed of the generation,
+		//which decide the seeds of its games
+		public int id;
+		public long generationSeed;
+		//State of the games played with play(withFrame) and bestMove(),
+		//created on first use: the games of the training runs are played
+		//on the states of the worker threads instead
+		private StateEx state;
 		
 		private float EPSILON = 0.0001f;
 		
@@ -215,9 +828,9 @@ public class PlayerSkeleton {
 		public Individual(boolean random) {
 			fitness = 0;
 			if(random) {
-				for(int i = 0 ; i < NUM_FEATURES ; i++) {
+				for(int i = 0 ; i < features.length ; i++) {
 					//In the actual project we should use this:
-					if(i == ROWS_CLEARED){
+					if(Features.isReward(featureSet[i])){
 						features[i] = RANDOM.nextFloat();
 					}
 					else{
@@ -233,11 +846,9 @@ public class PlayerSkeleton {
 //				features[AGGREGATE_HEIGHT] = -0.22584862f;
 //				features[HOLES] = 0.00048035383f;
 				
-				//lee yuan weights
-				features[ROWS_CLEARED] = 0.760666f;
-				features[BUMPINESS] = -0.184483f;
-				features[AGGREGATE_HEIGHT] = -0.510066f;
-				features[HOLES] = -0.35663f;
+				//lee yuan weights, and 0 for the other features
+				for(int i = 0 ; i < features.length ; i++)
+					features[i] = Features.defaultWeight(featureSet[i]);
 				
 			}
 		}
@@ -264,8 +875,11 @@ public class PlayerSkeleton {
 			return Arrays.toString(this.features) + " (fitness " + (fitness/(float)NUM_GAMES_PER_GEN) + ")";
 		}
 		
-		public void resetState() {
-			state = new StateEx();
+		/* The state of this individual, for the UI and verify. */
+		StateEx state() {
+			if(state == null)
+				state = new StateEx();
+			return state;
 		}
 		
 		/**
@@ -274,31 +888,54 @@ public class PlayerSkeleton {
 		 * @return The number of rows cleared this game.
 		 */
 		public int play(boolean withFrame) {
-			
-			float maxScore;
-			int bestMove;
+			return play(state(), withFrame);
+		}
+		
+		/**
+		 * Have this individual play one game on the given state, which
+		 * should be a new game.
+		 * @param state The state to play on.
+		 * @param withFrame Whether the game UI should be visible.
+		 * @return The number of rows cleared this game.
+		 */
+		public int play(StateEx state, boolean withFrame) {
+			return play(state, withFrame, null);
+		}
+		
+		/**
+		 * Play one game like play(state, withFrame), and record its moves
+		 * with recorder, unless it is null. The pieces of state must then
+		 * be seeded.
+		 */
+		public int play(StateEx state, boolean withFrame, Replay.Recorder recorder) {
+			return play(state, withFrame, recorder, null);
+		}
+		
+		/**
+		 * Play one game like play(state, withFrame, recorder), and also write
+		 * the board, move and features of every turn to dataset, unless it
+		 * is null.
+		 */
+		public int play(StateEx state, boolean withFrame, Replay.Recorder recorder, Dataset.Writer dataset) {
 			
 			if(withFrame)
 				new TFrame(state);
 			
-			while(!state.hasLost()) {
+			if(recorder != null)
+				recorder.start(state);
+			if(dataset != null)
+				dataset.start(state);
+			long start = System.nanoTime();
+			while(!state.hasLost() && (maxPieces == 0 || state.getTurnNumber() < maxPieces)) {
 				int[][] legalMoves = state.legalMoves();
-				maxScore = Float.NEGATIVE_INFINITY;
-				bestMove = -1;
-				
-				/* Test every move against the board, and pick the one
-				 * that maximizes the score of the resulting board,
-				 * according to our own weights. */
-				for (int i = 0; i < legalMoves.length; i++){
-					float moveScore = this.state.testMove(legalMoves[i][State.ORIENT], 
-														legalMoves[i][State.SLOT], 
-														this.features);
-					if (moveScore > maxScore){
-						maxScore = moveScore;
-						bestMove = i;
-					}
-				}
+				int bestMove = bestMove(state);
 
+				if(recorder != null)
+					recorder.move(bestMove);
+				if(dataset != null) {
+					state.testMove(legalMoves[bestMove][State.ORIENT], legalMoves[bestMove][State.SLOT], features);
+					dataset.move(state, bestMove, state.latestHeuristics);
+				}
 				state.makeMove(legalMoves[bestMove]);
 				
 				if(withFrame) {
@@ -312,45 +949,332 @@ public class PlayerSkeleton {
 				}
 			}
 			
+			if(dataset != null)
+				dataset.finish(state);
+			state.gameFinished();
+			Metrics.gameFinished(System.nanoTime() - start, state.getTurnNumber(), state.getRowsCleared());
 			return state.getRowsCleared();
 		}
 		
+		/**
+		 * Test every move against the board, and pick the one
+		 * that maximizes the score of the resulting board,
+		 * according to our own weights.
+		 * @return The index of the best move in state.legalMoves().
+		 */
+		public int bestMove() {
+			return bestMove(state());
+		}
+		
+		public int bestMove(StateEx state) {
+			if(lookahead != null)
+				return lookahead.bestMove(state, features);
+			
+			return state.scoreMoves(this.features);
+		}
+		
 	}
 	
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		PlayerSkeleton p = new PlayerSkeleton();
+		String metricsAddress = null;
 		
 		if(args.length > 0 && args[0].equals("-g")) {
-			p.genetic(1000, 1000, 0.05f, 0.025f, false, 5);
+			boolean steady = false;
+			int report = 1000;
+			String optimizer = "genetic";
+			int popSize = 100;
+			for(int i = 1 ; i < args.length ; i++) {
+				if(args[i].equals("-crn"))
+					p.commonSeeds = true;
+				else if(args[i].equals("-seed"))
+					RANDOM = new Random(Long.parseLong(args[++i]));
+				else if(args[i].equals("-checkpoint"))
+					p.checkpointFile = new File(args[++i]);
+				else if(args[i].equals("-every"))
+					p.checkpointEvery = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-cap"))
+					p.maxPieces = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-race"))
+					p.racing = true;
+				else if(args[i].equals("-shared")) {
+					p.sharedBoards = true;
+					p.commonSeeds = true;
+				}
+				else if(args[i].equals("-cache"))
+					p.cacheSize = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-coordinator"))
+					p.coordinator = new Distributed.Coordinator(Integer.parseInt(args[++i]), p);
+				else if(args[i].equals("-islands"))
+					p.numIslands = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-migrate"))
+					p.migrateEvery = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-steady"))
+					steady = true;
+				else if(args[i].equals("-features"))
+					p.featureSet = Features.parse(args[++i]);
+				else if(args[i].equals("-optimizer"))
+					optimizer = args[++i];
+				else if(args[i].equals("-popsize"))
+					popSize = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-report"))
+					report = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-metrics"))
+					metricsAddress = args[++i];
+				else if(args[i].equals("-virtual"))
+					p.useVirtualThreads();
+			}
+			if(metricsAddress != null)
+				Metrics.start(metricsAddress, p.pool, p.virtualThreads ? p.cpuSlots : null);
+			float[] start = p.new Individual(false).features;
+			if(optimizer.equals("cmaes"))
+				p.optimize(new CmaEs(start, 0.5, popSize, RANDOM), 1000);
+			else if(optimizer.equals("ce"))
+				p.optimize(new CrossEntropy(start, 0.25, popSize, 0.1f, 0.0125, 50, RANDOM), 1000);
+			else if(!optimizer.equals("genetic"))
+				throw new IllegalArgumentException("Unknown optimizer " + optimizer + ", expected genetic, cmaes or ce");
+			else if(steady)
+				p.steadyState(1000, 1000L * 1000, 0.05f, 0.025f, report);
+			else if(p.numIslands > 1)
+				p.islands(p.numIslands, p.migrateEvery, 1000, 1000, 0.05f, 0.025f);
+			else
+				p.genetic(1000, 1000, 0.05f, 0.025f, false, 5);
+			Metrics.stop();
+			return;
+		}
+		
+		//Continue a run of the genetic algorithm from its last checkpoint
+		if(args.length > 1 && args[0].equals("--resume")) {
+			Checkpoint c = Checkpoint.read(new File(args[1]));
+			p.resumeFrom = c;
+			p.checkpointFile = new File(args[1]);
+			p.commonSeeds = c.commonSeeds;
+			p.maxPieces = c.maxPieces;
+			p.racing = c.racing;
+			p.featureSet = Features.parse(c.features);
+			RANDOM = c.restoreRandom();
+			for(int i = 2 ; i < args.length ; i++) {
+				if(args[i].equals("-every"))
+					p.checkpointEvery = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-cache"))
+					p.cacheSize = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-shared"))
+					p.sharedBoards = true;
+				else if(args[i].equals("-coordinator"))
+					p.coordinator = new Distributed.Coordinator(Integer.parseInt(args[++i]), p);
+				else if(args[i].equals("-metrics"))
+					metricsAddress = args[++i];
+				else if(args[i].equals("-virtual"))
+					p.useVirtualThreads();
+			}
+			if(metricsAddress != null)
+				Metrics.start(metricsAddress, p.pool, p.virtualThreads ? p.cpuSlots : null);
+			p.genetic(c.genSize, c.numGens, c.mutation, c.elitism, c.varyMutation, c.smoothing);
+			Metrics.stop();
+			return;
+		}
+		
+		//Play the games sent by a coordinator (see Distributed)
+		if(args.length > 1 && args[0].equals("-worker")) {
+			String[] address = args[1].split(":");
+			int threads = Runtime.getRuntime().availableProcessors();
+			for(int i = 2 ; i < args.length ; i++) {
+				if(args[i].equals("-threads"))
+					threads = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-cache"))
+					p.cacheSize = Integer.parseInt(args[++i]);
+			}
+			new Distributed.Worker(p, threads).run(address[0], Integer.parseInt(address[1]));
 			return;
 		}
 		
+		//Check the heuristics on the given number of games (100 by default)
+		if(args.length > 0 && args[0].equals("-t")) {
+			int games = 100;
+			for(int i = 1 ; i < args.length ; i++) {
+				if(args[i].equals("-cache"))
+					p.cacheSize = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-features"))
+					p.featureSet = Features.parse(args[++i]);
+				else if(!args[i].startsWith("-"))
+					games = Integer.parseInt(args[i]);
+			}
+			p.verify(games);
+			return;
+		}
+		
+		if(args.length > 1 && args[0].equals("-depth") && Integer.parseInt(args[1]) > 1)
+			p.lookahead = new Lookahead(p, p.pool, Lookahead.DEFAULT_BEAM);
+		
 		Individual in = p.new Individual(false);
 		int score = in.play(true);
 		System.out.println("You have completed "+score+" rows.");
 	}
 	
-	/* Compute the fitness of this individual.
+	/* Switch to virtualThreads, if the JDK has them. */
+	void useVirtualThreads() {
+		if(VirtualThreads.available())
+			virtualThreads = true;
+		else
+			System.err.println("Virtual threads need Java 21 or later, the games are played on the worker pool");
+	}
+	
+	/* Differential check of the heuristics computed by testMove against
+	 * the ones computed from scratch by testMoveFull. Every board of the
+	 * given number of games is checked, with all its legal moves. Half of
+	 * the games are played by random individuals, to see more kinds of
+	 * boards, and half by the default one, to see long games. */
+	private void verify(int games) {
+		long boards = 0;
+		for(int i = 0 ; i < games ; i++) {
+			Individual in = new Individual(i % 2 == 0);
+			StateEx state = in.state();
+			while(!state.hasLost()) {
+				if(!state.checkMoves(in.features)) {
+					System.out.println("Heuristics differ in game " + i + " at turn " + state.getTurnNumber() + ".");
+					return;
+				}
+				boards++;
+				state.makeMove(in.bestMove());
+			}
+		}
+		System.out.println("Heuristics are the same on " + boards + " boards.");
+	}
+	
+	/* Compute the fitness of this individual, once its games have been played.
 	 * Fitness is defined as the sum of rows cleared
-	 * over a certain number of games. */
+	 * over a certain number of games. If the individual was dropped
+	 * before playing all of them, the sum is scaled up from the games
+	 * it played. */
 	private void fitness(Individual in) {
 		int totalFitness = 0;
-		for(int i = 0 ; i < NUM_GAMES_PER_GEN ; i++) {
-			totalFitness += in.play(false);
-			in.resetState();
+		for(int i = 0 ; i < in.gamesPlayed ; i++)
+			totalFitness += in.games[i];
+		
+		if(in.gamesPlayed == NUM_GAMES_PER_GEN)
+			in.fitness = totalFitness;
+		else
+			in.fitness = totalFitness * (float) NUM_GAMES_PER_GEN / in.gamesPlayed;
+	}
+	
+	/* Compute the fitness of every individual of gen, and store it in fitnesses.
+	 * Every game of every individual is played on the worker pool, and this
+	 * returns once all of them are finished.
+	 * 
+	 * With racing, the individuals first play a quarter of their games. Only
+	 * the best half of them (but at least keep individuals) play as many games
+	 * again, and so on until the remaining ones have played all their games.
+	 * The individuals that were dropped are ranked after the ones that played
+	 * every game, so that the elite is always chosen among the latter. */
+	void evaluate(Individual[] gen, float[] fitnesses, int keep) {
+		long generationSeed = RANDOM.nextLong();
+		for(int i = 0 ; i < gen.length ; i++) {
+			gen[i].id = i;
+			gen[i].generationSeed = generationSeed;
+			gen[i].gamesPlayed = 0;
+		}
+		
+		Individual[] remaining = gen;
+		int played = 0;
+		int round = racing ? Math.max(NUM_GAMES_PER_GEN / 4, 1) : NUM_GAMES_PER_GEN;
+		while(true) {
+			int games = Math.min(round, NUM_GAMES_PER_GEN - played);
+			if(coordinator != null) {
+				try {
+					coordinator.play(remaining, played, games);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			} else if(sharedBoards && commonSeeds && lookahead == null)
+				pool.invoke(new LockstepTask(remaining, played, 0, games));
+			else if(virtualThreads)
+				playVirtual(remaining, played, games);
+			else
+				pool.invoke(new GameTask(remaining, played, games, 0, remaining.length * games));
+			played += games;
+			for(Individual in : remaining) {
+				in.gamesPlayed = played;
+				fitness(in);
+			}
+			if(played == NUM_GAMES_PER_GEN)
+				break;
+			
+			//Keep the best half for the next round, which is as long as all the previous ones
+			int next = Math.max(remaining.length / 2, Math.min(keep, remaining.length));
+			if(next < remaining.length) {
+				float[] f = new float[remaining.length];
+				for(int i = 0 ; i < remaining.length ; i++)
+					f[i] = remaining[i].fitness;
+				Individual[] best = new Individual[next];
+				select(remaining, f, best);
+				remaining = best;
+			}
+			round = played;
 		}
 		
-		in.fitness = totalFitness;
+		float lowest = Float.POSITIVE_INFINITY;
+		for(Individual in : remaining)
+			lowest = Math.min(lowest, in.fitness);
+		for(int i = 0 ; i < gen.length ; i++) {
+			fitnesses[i] = gen[i].fitness;
+			if(gen[i].gamesPlayed < NUM_GAMES_PER_GEN)
+				fitnesses[i] = Math.min(fitnesses[i], Math.nextDown(lowest));
+		}
 	}
 	
 	/* ==========================================
 	 * GENERIC GENETIC ALGORITHM STUFF DOWN HERE. 
 	 * ======================================= */
 	
+	/* Put the elite.length individuals of gen with the largest fitness in elite,
+	 * from the best to the worst. fitness[i] is the fitness of gen[i].
+	 * This is a partial selection (quickselect): only the elite part of the
+	 * generation ends up sorted. */
+	void select(Individual[] gen, float[] fitness, Individual[] elite) {
+		int[] order = new int[gen.length];
+		for(int i = 0 ; i < order.length ; i++)
+			order[i] = i;
+		
+		//Move the elite.length largest fitnesses to the front of order
+		int k = elite.length - 1;
+		int lo = 0, hi = order.length - 1;
+		while(lo < hi) {
+			float pivot = fitness[order[(lo + hi) >>> 1]];
+			int i = lo, j = hi;
+			while(i <= j) {
+				while(fitness[order[i]] > pivot) i++;
+				while(fitness[order[j]] < pivot) j--;
+				if(i <= j) {
+					int tmp = order[i];
+					order[i++] = order[j];
+					order[j--] = tmp;
+				}
+			}
+			if(k <= j)
+				hi = j;
+			else if(k >= i)
+				lo = i;
+			else
+				break;
+		}
+		
+		//Sort the front, largest fitness first
+		for(int i = 1 ; i < elite.length ; i++) {
+			int index = order[i];
+			int j = i;
+			for(; j > 0 && fitness[order[j-1]] < fitness[index] ; j--)
+				order[j] = order[j-1];
+			order[j] = index;
+		}
+		
+		for(int i = 0 ; i < elite.length ; i++)
+			elite[i] = gen[order[i]];
+	}
+	
 	/* Take the given parent individuals and generate a set
 	 * of new individuals that inherit their features
 	 * from the parents. gen_size individuals are generated */
-	private Individual[] combine(Individual[] top, final int gen_size) {
+	Individual[] combine(Individual[] top, final int gen_size) {
 		/* For each pair of individuals, randomly select features from
 		 * either one or the other to assign to each new individual. */
 		Individual[] newGen = new Individual[gen_size];
@@ -365,7 +1289,7 @@ public class PlayerSkeleton {
 			
 			/* Flip a coin on every feature to determine which 
 			 * child should inherit from whom. */
-			for(int j = 0 ; j < NUM_FEATURES ; j++) {
+			for(int j = 0 ; j < childA.features.length ; j++) {
 				if(RANDOM.nextBoolean()) {
 					childA.features[j] = top[parentA].features[j];
 					childB.features[j] = top[parentB].features[j];
@@ -381,11 +1305,11 @@ public class PlayerSkeleton {
 		return newGen;
 	}
 	
-	private void mutate(Individual[] gen, final float mutation) {
+	void mutate(Individual[] gen, final float mutation) {
 		//Go through the features of each individual and mutate it according to the mutation rate
 		for(int i = 0 ; i < gen.length ; i++) {
 			if(RANDOM.nextFloat() < mutation) {
-				int selected = RANDOM.nextInt(NUM_FEATURES);
+				int selected = RANDOM.nextInt(gen[i].features.length);
 				float amt = 0.f;
 				while(amt == 0.f)
 					amt = (RANDOM.nextBoolean() ? 1.f : -1.f) * 0.1f * RANDOM.nextFloat();
@@ -413,7 +1337,8 @@ public class PlayerSkeleton {
 		Individual[] current_gen = new Individual[gen_size];
 		Individual[] elite = new Individual[num_top];
 		Individual best = null;
-		leaderboard = new PriorityQueue<Individual>(gen_size);
+		//Fitness of every individual of the current generation
+		float[] fitnesses = new float[gen_size];
 //		ArrayList<Float> fitness_history = new ArrayList<Float>(num_gens);
 		LinkedHashMap<Integer, Float> fitness_queue = new LinkedHashMap<Integer, Float>()
 		{
@@ -431,35 +1356,38 @@ public class PlayerSkeleton {
 		
 		
 		float variable_mutation = mutation;
-		current_gen[0] = new Individual(false);		
-		//Create first generation
-		for(int i = 1 ; i < gen_size ; i++)
-			current_gen[i] = new Individual(true);
+		if(resumeFrom != null) {
+			//Continue from the checkpoint: RANDOM has already been restored
+			k = resumeFrom.generation;
+			variable_mutation = resumeFrom.variableMutation;
+			previous_mean = resumeFrom.previousMean;
+			for(int i = 0 ; i < resumeFrom.historyGenerations.length ; i++)
+				fitness_queue.put(resumeFrom.historyGenerations[i], resumeFrom.historyFitness[i]);
+			for(int i = 0 ; i < gen_size ; i++) {
+				current_gen[i] = new Individual(false);
+				System.arraycopy(resumeFrom.population[i], 0, current_gen[i].features, 0, featureSet.length);
+			}
+			resumeFrom = null;
+		} else {
+			current_gen[0] = new Individual(false);		
+			//Create first generation
+			for(int i = 1 ; i < gen_size ; i++)
+				current_gen[i] = new Individual(true);
+		}
 		
 		while(k < num_gens) {
 			System.out.print("Generation " + k + "... ");
-			ExecutorService executor = Executors.newFixedThreadPool(gen_size);
+			long start = System.nanoTime();
+			evaluate(current_gen, fitnesses, num_top);
 			
-			for(int i = 0 ; i < current_gen.length ; i++) {
-				FitnessThread thread = new FitnessThread(current_gen[i]);
-				executor.execute(thread);
-			}
-			
-			executor.shutdown();
-			while (!executor.isTerminated()) {}
-			
-			best = leaderboard.peek();
+			select(current_gen, fitnesses, elite);
+			best = elite[0];
+			Metrics.generationFinished(System.nanoTime() - start, best.fitness / NUM_GAMES_PER_GEN,
+					mean(fitnesses) / NUM_GAMES_PER_GEN, variable_mutation);
 			fitness_queue.put(k, best.fitness);
 			System.out.print("best individual: " 
 					+ best.toString() + " ");
 			
-			for(int i = 0 ; i < num_top ; i++) {
-				Individual in = leaderboard.remove();
-				elite[i] = in;
-			}
-			leaderboard.clear();
-			
-			
 			current_gen = combine(elite, gen_size);
 			
 			//smoothing is the number of generations in a vector
@@ -494,15 +1422,371 @@ public class PlayerSkeleton {
 				previous_mean = progress_mean[1];
 			}
 			
+			printEvaluationStats();
 			System.out.println();
 			
 			mutate(current_gen, variable_mutation);
 			
 			k++;
+			
+			if(checkpointFile != null && k % checkpointEvery == 0) {
+				Checkpoint c = new Checkpoint();
+				c.genSize = gen_size;
+				c.numGens = num_gens;
+				c.mutation = mutation;
+				c.elitism = elitism;
+				c.varyMutation = vary_mutation;
+				c.smoothing = smoothing;
+				checkpoint(c, k, current_gen, variable_mutation, previous_mean, fitness_queue);
+			}
 		};
+		
+		//Wait for the last checkpoint to be written
+		if(checkpointWriter != null) {
+			checkpointWriter.shutdown();
+			try {
+				checkpointWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			checkpointWriter = null;
+		}
+	}
+	
+	/* Print the cache and shared boards counters of the last generation, if they are used. */
+	private void printEvaluationStats() {
+		if(cacheSize > 0)
+			System.out.print(" " + TranspositionCache.statsThenReset());
+		if(sharedBoards)
+			System.out.print(String.format(" shared boards: %d feature passes for %d moves",
+					lockstepPasses.sumThenReset(), lockstepMoves.sumThenReset()));
+	}
+	
+	/* Train with optimizer instead of the genetic algorithm, for num_gens generations.
+	 * Every generation is evaluated like the ones of genetic, with the candidates
+	 * normalized to unit length, and reported the same way, with the mean of the
+	 * distribution of the optimizer. */
+	private void optimize(Optimizer optimizer, int num_gens) {
+		int size = optimizer.populationSize();
+		Individual[] gen = new Individual[size];
+		float[] fitnesses = new float[size];
+		Individual[] top = new Individual[1];
+		for(int k = 0 ; k < num_gens ; k++) {
+			System.out.print("Generation " + k + "... ");
+			long start = System.nanoTime();
+			float[][] candidates = optimizer.ask();
+			for(int i = 0 ; i < size ; i++) {
+				gen[i] = new Individual(false);
+				normalize(candidates[i], gen[i].features);
+			}
+			evaluate(gen, fitnesses, optimizer.parents());
+			optimizer.tell(candidates, fitnesses);
+			
+			select(gen, fitnesses, top);
+			Metrics.generationFinished(System.nanoTime() - start, top[0].fitness / NUM_GAMES_PER_GEN,
+					mean(fitnesses) / NUM_GAMES_PER_GEN, 0);
+			float[] center = new float[featureSet.length];
+			normalize(optimizer.mean(), center);
+			System.out.print("best individual: " + top[0] + " mean: " + Arrays.toString(center)
+					+ " " + optimizer.describe());
+			printEvaluationStats();
+			System.out.println();
+		}
+	}
+	
+	/* Copy weights to features, scaled to unit length. */
+	private static void normalize(float[] weights, float[] features) {
+		double norm = 0;
+		for(float w : weights)
+			norm += w * w;
+		norm = Math.sqrt(norm);
+		for(int i = 0 ; i < features.length ; i++)
+			features[i] = norm == 0 ? weights[i] : (float) (weights[i] / norm);
+	}
+	
+	/* Island model: run genetic on numIslands sub-populations of gen_size/numIslands
+	 * individuals each (rounded down to an even number), each on its own thread,
+	 * with its own selection, combine and mutate, and without waiting for the
+	 * other islands between generations. Every migrateEvery generations, copies
+	 * of the MIGRANTS best individuals of an island are sent to the next island
+	 * (in a ring), where they replace children of its next generation as soon as
+	 * it gets to one. The games of every island are still played on the shared
+	 * pool (or by the workers of coordinator), so the cores stay busy while an
+	 * island is between two generations.
+	 * 
+	 * Islands do not use variable mutation nor write checkpoints, and since they
+	 * all draw from RANDOM at their own pace, a run is not reproducible with -seed.
+	 */
+	private void islands(final int numIslands, final int migrateEvery, final int gen_size, final int num_gens,
+			final float mutation, final float elitism) {
+		final int size = gen_size / numIslands & ~1;
+		final int num_top = Math.max((int) (size * elitism), 2);
+		if(size <= num_top)
+			throw new IllegalArgumentException(numIslands + " islands of " + gen_size + " individuals have "
+					+ size + " individuals each, which is not more than their " + num_top + " elite");
+		//Migrants that have arrived on every island, and the best individual of every island
+		final List<Queue<float[]>> inboxes = new ArrayList<Queue<float[]>>();
+		final Individual[] bests = new Individual[numIslands];
+		for(int i = 0 ; i < numIslands ; i++)
+			inboxes.add(new ConcurrentLinkedQueue<float[]>());
+		
+		Thread[] threads = new Thread[numIslands];
+		for(int i = 0 ; i < numIslands ; i++) {
+			final int island = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					Individual[] current_gen = new Individual[size];
+					Individual[] elite = new Individual[num_top];
+					float[] fitnesses = new float[size];
+					current_gen[0] = new Individual(false);
+					for(int j = 1 ; j < size ; j++)
+						current_gen[j] = new Individual(true);
+					
+					for(int k = 0 ; k < num_gens ; k++) {
+						long start = System.nanoTime();
+						evaluate(current_gen, fitnesses, num_top);
+						select(current_gen, fitnesses, elite);
+						bests[island] = elite[0];
+						Metrics.generationFinished(System.nanoTime() - start, elite[0].fitness / NUM_GAMES_PER_GEN,
+								mean(fitnesses) / NUM_GAMES_PER_GEN, mutation);
+						System.out.println("Island " + island + ", generation " + k + "... best individual: " + elite[0]);
+						
+						if(migrateEvery > 0 && (k + 1) % migrateEvery == 0) {
+							Queue<float[]> next = inboxes.get((island + 1) % numIslands);
+							for(int j = 0 ; j < Math.min(MIGRANTS, num_top) ; j++)
+								next.add(Arrays.copyOf(elite[j].features, featureSet.length));
+						}
+						
+						current_gen = combine(elite, size);
+						mutate(current_gen, mutation);
+						
+						//Migrants replace the last children
+						float[] migrant;
+						for(int j = size - 1 ; j > 0 && (migrant = inboxes.get(island).poll()) != null ; j--)
+							System.arraycopy(migrant, 0, current_gen[j].features, 0, featureSet.length);
+					}
+				}
+			}, "island " + i);
+			threads[i].start();
+		}
+		
+		for(Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		Individual best = bests[0];
+		for(Individual in : bests)
+			if(in.fitness > best.fitness)
+				best = in;
+		System.out.println("Best individual of all islands: " + best);
+	}
+	
+	/* Steady-state genetic algorithm: there are no generations. The population
+	 * is kept sorted by fitness, and as soon as an individual has played its
+	 * games, it takes the place of the worst one (if it is better), and a new
+	 * child of two of the num_top best individuals is bred and sent to the pool.
+	 * The pool always has 2 individuals per core to play, so no core waits for
+	 * the slowest individual of a generation. Stops after num_evaluations
+	 * individuals, and reports progress every report_every of them.
+	 * 
+	 * With common random numbers, every individual plays the same games. */
+	private void steadyState(final int pop_size, final long num_evaluations, final float mutation,
+			final float elitism, final int report_every) {
+		final SteadyState run = new SteadyState(pop_size, num_evaluations, mutation,
+				Math.max((int) (pop_size * elitism), 2), report_every);
+		synchronized(run) {
+			for(int i = 0 ; i < 2 * pool.getParallelism() && run.dispatched < num_evaluations ; i++)
+				run.dispatch(new Individual(i > 0));
+			while(run.evaluated < num_evaluations) {
+				try {
+					run.wait();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					return;
+				}
+			}
+		}
+		System.out.println("Best individual: " + run.population[0]);
+	}
+	
+	/* Population and progress of a run of steadyState. */
+	private class SteadyState {
+		//The best individuals evaluated so far, best first
+		final Individual[] population;
+		int size;
+		final long numEvaluations;
+		final float mutation;
+		final int numTop;
+		final int reportEvery;
+		//Seed of the games of every individual with common random numbers
+		final long seed = RANDOM.nextLong();
+		long dispatched, evaluated;
+		long start = System.nanoTime();
+		long lastReport = start;
+		
+		SteadyState(int popSize, long numEvaluations, float mutation, int numTop, int reportEvery) {
+			this.population = new Individual[popSize];
+			this.numEvaluations = numEvaluations;
+			this.mutation = mutation;
+			this.numTop = numTop;
+			this.reportEvery = reportEvery;
+		}
+		
+		/* Have the pool play the games of in. Called with the lock of this. */
+		void dispatch(Individual in) {
+			in.id = 0;
+			in.generationSeed = commonSeeds ? seed : RANDOM.nextLong();
+			dispatched++;
+			if(virtualThreads) {
+				final Individual individual = in;
+				VirtualThreads.start(new Runnable() {
+					public void run() {
+						try {
+							playGames(individual, 0, NUM_GAMES_PER_GEN);
+						} catch (InterruptedException e) {
+							throw new RuntimeException(e);
+						} finally {
+							if(Profiler.ENABLED)
+								Profiler.release();
+						}
+						evaluated(individual);
+					}
+				});
+			} else
+				pool.execute(new EvaluationTask(this, in));
+		}
+		
+		/* Insert in, which has played its games, and dispatch the next one. */
+		synchronized void evaluated(Individual in) {
+			in.gamesPlayed = NUM_GAMES_PER_GEN;
+			fitness(in);
+			
+			//Insertion into the sorted population, dropping the worst if it is full
+			int i = size < population.length ? size++ : population.length;
+			for( ; i > 0 && population[i-1].fitness < in.fitness ; i--)
+				if(i < population.length)
+					population[i] = population[i-1];
+			if(i < population.length)
+				population[i] = in;
+			
+			evaluated++;
+			if(evaluated % reportEvery == 0 || evaluated == numEvaluations) {
+				float sum = 0;
+				for(int j = 0 ; j < size ; j++)
+					sum += population[j].fitness;
+				long now = System.nanoTime();
+				double seconds = (now - start) / 1e9;
+				System.out.println(String.format("Evaluations %d (%.1f/s)... best individual: %s mean fitness %.2f",
+						evaluated, evaluated / seconds, population[0], sum / size / NUM_GAMES_PER_GEN));
+				Metrics.generationFinished(now - lastReport, population[0].fitness / NUM_GAMES_PER_GEN,
+						sum / size / NUM_GAMES_PER_GEN, mutation);
+				lastReport = now;
+			}
+			if(evaluated == numEvaluations)
+				notifyAll();
+			
+			if(dispatched < numEvaluations) {
+				//Random individuals until there are enough parents to choose from
+				if(size < numTop) {
+					dispatch(new Individual(true));
+				} else {
+					Individual[] children = combine(Arrays.copyOf(population, numTop), 2);
+					mutate(children, mutation);
+					dispatch(children[0]);
+				}
+			}
+		}
+	}
+	
+	/* Plays the games of one individual of steadyState, split like GameTask,
+	 * then hands it back to the run. */
+	private class EvaluationTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = -6983357210545839437L;
+		
+		private SteadyState run;
+		private Individual in;
+		
+		public EvaluationTask(SteadyState run, Individual in)
+		{
+			this.run = run;
+			this.in = in;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			new GameTask(new Individual[] {in}, 0, NUM_GAMES_PER_GEN, 0, NUM_GAMES_PER_GEN).invoke();
+			run.evaluated(in);
+		}
+	}
+	
+	/* Fill the progress of genetic into c, which already holds the parameters of
+	 * the run, and write it to checkpointFile in the background. Everything is
+	 * copied here, so genetic can go on while the file is being written. */
+	private void checkpoint(final Checkpoint c, int k, Individual[] gen, float variable_mutation,
+			float previous_mean, LinkedHashMap<Integer, Float> fitness_queue) {
+		c.commonSeeds = commonSeeds;
+		c.features = Features.names(featureSet);
+		c.maxPieces = maxPieces;
+		c.racing = racing;
+		c.generation = k;
+		c.variableMutation = variable_mutation;
+		c.previousMean = previous_mean;
+		
+		c.historyGenerations = new int[fitness_queue.size()];
+		c.historyFitness = new float[fitness_queue.size()];
+		int i = 0;
+		for(Map.Entry<Integer, Float> e : fitness_queue.entrySet()) {
+			c.historyGenerations[i] = e.getKey();
+			c.historyFitness[i] = e.getValue();
+			i++;
+		}
+		
+		c.population = new float[gen.length][];
+		for(i = 0 ; i < gen.length ; i++)
+			c.population[i] = Arrays.copyOf(gen[i].features, featureSet.length);
+		
+		try {
+			c.saveRandom(RANDOM);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		if(checkpointWriter == null) {
+			checkpointWriter = Executors.newSingleThreadExecutor(virtualThreads ? VirtualThreads.factory("checkpoint-writer")
+					: new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "checkpoint-writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		checkpointWriter.execute(new Runnable() {
+			public void run() {
+				try {
+					c.write(checkpointFile);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
 	}
 	
 	
+	private static float mean(float[] values) {
+		float sum = 0;
+		for(float v : values)
+			sum += v;
+		return sum / values.length;
+	}
+	
 	/*function to calculate the progress of a vector of individuals 
 	 * 
 	 */
@@ -525,36 +1809,209 @@ public class PlayerSkeleton {
 	}
 
 	
-	/*implements a runnable thread to for multi-threading
-	 * each fitness function gets it's own thread as it is the most cpu intensive 
+	/* Have every individual of gen play its games number firstGame to
+	 * firstGame+numGames-1, each individual on its own virtual thread.
+	 * Returns when all of them are finished. */
+	private void playVirtual(Individual[] gen, final int firstGame, final int numGames) {
+		final CountDownLatch done = new CountDownLatch(gen.length);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for(final Individual in : gen) {
+			VirtualThreads.start(new Runnable() {
+				public void run() {
+					try {
+						playGames(in, firstGame, numGames);
+					} catch(Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						if(Profiler.ENABLED)
+							Profiler.release();
+						done.countDown();
+					}
+				}
+			});
+		}
+		try {
+			done.await();
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if(failure.get() != null)
+			throw new RuntimeException(failure.get());
+	}
+	
+	/* Play games number firstGame to firstGame+numGames-1 of in on the
+	 * current thread, waiting for a slot of cpuSlots before every game. */
+	private void playGames(Individual in, int firstGame, int numGames) throws InterruptedException {
+		for(int game = firstGame ; game < firstGame + numGames ; game++) {
+			cpuSlots.acquire();
+			StateEx state = freeStates.poll();
+			try {
+				if(state == null)
+					state = new StateEx(cacheSize > 0 ? new TranspositionCache(cacheSize, featureSet.length) : null);
+				state.reset(new PieceSource.Seeded(gameSeed(in, game)));
+				in.games[game] = in.play(state, false);
+			} finally {
+				if(state != null)
+					freeStates.add(state);
+				cpuSlots.release();
+			}
+		}
+	}
+	
+	/* Seed of the pieces for the given game of an individual of the current generation.
+	 * The seeds are mixed: seeds spaced by the increment of SplittableRandom
+	 * would give the same sequence of pieces, shifted by one piece per game. */
+	long gameSeed(Individual in, int game) {
+		int i = commonSeeds ? game : in.id * NUM_GAMES_PER_GEN + game;
+		return mix(in.generationSeed ^ mix(i + 1));
+	}
+	
+	/* Bijective mix of the bits of z (the finalizer of SplitMix64). */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	/* Plays a range of the games of a generation: every individual of gen plays
+	 * its games number firstGame to firstGame+numGames-1. Game number i of the
+	 * range is the (firstGame + i % numGames)-th game of the (i / numGames)-th
+	 * individual. The range is split in halves until there is only one game left,
+	 * so that idle workers can steal the games of busy ones: a long game never
+	 * leaves the other cores waiting.
 	 */
-	public class FitnessThread implements Runnable
+	private class GameTask extends RecursiveAction
 	{
-		private Individual in;
+		private static final long serialVersionUID = 6405873190282137814L;
+		
+		private Individual[] gen;
+		private int firstGame, numGames;
+		private int from, to;
 		
-		public FitnessThread(Individual in)
+		public GameTask(Individual[] gen, int firstGame, int numGames, int from, int to)
 		{
-			this.in = in;
+			this.gen = gen;
+			this.firstGame = firstGame;
+			this.numGames = numGames;
+			this.from = from;
+			this.to = to;
 		}
 		
 		@Override
-		public void run()
+		protected void compute()
 		{
-			fitness(in);
+			if(to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new GameTask(gen, firstGame, numGames, from, middle),
+						new GameTask(gen, firstGame, numGames, middle, to));
+				return;
+			}
+			
+			Individual in = gen[from / numGames];
+			int game = firstGame + from % numGames;
+			StateEx state = workerState.get();
+			state.reset(new PieceSource.Seeded(gameSeed(in, game)));
+			in.games[game] = in.play(state, false);
 		}
+	}
+	
+	/* Plays a range of the games of a generation in lockstep: for every game
+	 * number firstGame+from to firstGame+to-1, every individual of gen plays
+	 * that game (with common random numbers, on the same sequence of pieces),
+	 * one turn at a time. At every turn, the individuals still playing are
+	 * grouped by board (by hash, then by comparing the boards). The features
+	 * of the moves of every distinct board are extracted once by testMoves,
+	 * and every individual of the group scores them with its own weights.
+	 * The moves chosen are the same as in Individual.play. The range is split
+	 * in halves like in GameTask, one game per task.
+	 */
+	private class LockstepTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = -2893365408316541707L;
 		
-		private void fitness(Individual in) {
-			int totalFitness = 0;
-			for(int i = 0 ; i < NUM_GAMES_PER_GEN ; i++) {
-				totalFitness += in.play(false);
-				in.resetState();
+		private Individual[] gen;
+		private int firstGame;
+		private int from, to;
+		
+		public LockstepTask(Individual[] gen, int firstGame, int from, int to)
+		{
+			this.gen = gen;
+			this.firstGame = firstGame;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if(to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new LockstepTask(gen, firstGame, from, middle),
+						new LockstepTask(gen, firstGame, middle, to));
+				return;
 			}
 			
-			in.fitness = totalFitness;
+			int game = firstGame + from;
+			StateEx[] states = lockstepStates.get();
+			if(states.length < gen.length) {
+				states = Arrays.copyOf(states, gen.length);
+				for(int i = 0 ; i < gen.length ; i++)
+					if(states[i] == null)
+						states[i] = new StateEx();
+				lockstepStates.set(states);
+			}
+			
+			//Individuals still playing, and the move each of them chooses
+			int[] playing = new int[gen.length];
+			int[] moves = new int[gen.length];
+			//Open-addressing table of the distinct boards of a turn: the
+			//individual whose state holds the features of the board, or -1
+			int[] boards = new int[Integer.highestOneBit(gen.length) << 2];
+			int mask = boards.length - 1;
+			
+			int alive = gen.length;
+			for(int i = 0 ; i < gen.length ; i++) {
+				states[i].reset(new PieceSource.Seeded(gameSeed(gen[i], game)));
+				playing[i] = i;
+			}
 			
-			/* With natural ordering, individuals with high fitness will be at
-			 * the front of the priority queue. */
-			leaderboard.add(in);
+			long passes = 0, chosen = 0;
+			long start = System.nanoTime();
+			while(alive > 0) {
+				Arrays.fill(boards, -1);
+				for(int a = 0 ; a < alive ; a++) {
+					int i = playing[a];
+					long hash = states[i].getHash();
+					int h = (int) (hash ^ (hash >>> 32)) & mask;
+					int owner;
+					while((owner = boards[h]) != -1 && !states[owner].sameBoard(states[i]))
+						h = (h + 1) & mask;
+					if(owner == -1) {
+						boards[h] = owner = i;
+						states[i].testMoves();
+						passes++;
+					}
+					moves[i] = states[owner].scoreTestedMoves(gen[i].features);
+				}
+				chosen += alive;
+				
+				//Make the moves once every board of the turn has been scored
+				int still = 0;
+				for(int a = 0 ; a < alive ; a++) {
+					int i = playing[a];
+					StateEx state = states[i];
+					state.makeMove(state.legalMoves()[moves[i]]);
+					if(state.hasLost() || (maxPieces != 0 && state.getTurnNumber() >= maxPieces)) {
+						gen[i].games[game] = state.getRowsCleared();
+						state.gameFinished();
+						Metrics.gameFinished(System.nanoTime() - start, state.getTurnNumber(), state.getRowsCleared());
+					} else
+						playing[still++] = i;
+				}
+				alive = still;
+			}
+			lockstepPasses.add(passes);
+			lockstepMoves.add(chosen);
 		}
 	}
 	
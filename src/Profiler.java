@@ -0,0 +1,184 @@
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Sampling profiler of the phases of the play loop. It is off unless the
+ * JVM is started with -Dtetris.profile=true (BatchRunner -profile does it):
+ * ENABLED is a static final constant, so when it is false the JIT removes
+ * every hook, which are all written as
+ *
+ *   long t = Profiler.ENABLED ? Profiler.start(Profiler.PHASE) : 0;
+ *   ...
+ *   if(Profiler.ENABLED) Profiler.stop(Profiler.PHASE, t);
+ *
+ * Every thread has its own Recorder, created the first time it records, so
+ * recording never contends. A thread that is about to end, such as a virtual
+ * thread that played the games of one individual, gives its recorder back
+ * with release, and the next thread that records reuses it, so there are
+ * never more recorders than threads recording at once. A recorder counts every call of a
+ * phase, but only times one call in SAMPLE_EVERY, into a histogram with
+ * SUB_BUCKETS buckets per power of 2 (like HdrHistogram, with a precision
+ * of 1/SUB_BUCKETS). The recorders are merged by report.
+ */
+class Profiler {
+	static final boolean ENABLED = Boolean.getBoolean("tetris.profile");
+
+	/* One call in SAMPLE_EVERY (a power of 2) of every phase is timed. */
+	private static final int SAMPLE_EVERY = Integer.highestOneBit(Math.max(Integer.getInteger("tetris.profile.every", 16), 1));
+
+	/* Phases of the play loop. Some contain others: MOVES contains EXTRACT
+	 * and SCORE, EXTRACT contains CLEAR_ROWS, and MAKE_MOVE contains BASE. */
+	static final int MOVES = 0;
+	static final int EXTRACT = 1;
+	static final int CLEAR_ROWS = 2;
+	static final int SCORE = 3;
+	static final int MAKE_MOVE = 4;
+	static final int BASE = 5;
+	private static final String[] PHASES = {
+		"scoreMoves (all moves of a piece)",
+		"  extractFeatures (one move)",
+		"    clearRows and rollback",
+		"  scoreTestedMoves",
+		"StateEx.makeMove",
+		"  base heuristics (getHoles, getBumpinessAndHeight)",
+	};
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	/* Every recorder created so far. */
+	private static final Queue<Recorder> all = new ConcurrentLinkedQueue<Recorder>();
+	/* Recorders given back by release, to be reused. */
+	private static final Queue<Recorder> free = new ConcurrentLinkedQueue<Recorder>();
+
+	private static final ThreadLocal<Recorder> recorders = new ThreadLocal<Recorder>() {
+		@Override
+		protected Recorder initialValue() {
+			Recorder r = free.poll();
+			return r != null ? r : new Recorder();
+		}
+	};
+
+	/* Start a call of phase on the recorder of the current thread.
+	 * Return the time to pass to stop, or 0 if this call is not sampled. */
+	static long start(int phase) {
+		return recorders.get().start(phase);
+	}
+
+	static void stop(int phase, long start) {
+		recorders.get().stop(phase, start);
+	}
+
+	/* Give the recorder of the current thread back for reuse, when the thread
+	 * is about to end. Its counts are kept for report. */
+	static void release() {
+		Recorder r = recorders.get();
+		recorders.remove();
+		free.add(r);
+	}
+
+	/* Bucket of a duration in nanoseconds: values below SUB_BUCKETS have
+	 * their own bucket, the others are split in SUB_BUCKETS per power of 2. */
+	private static int bucket(long nanos) {
+		if(nanos < SUB_BUCKETS)
+			return (int) Math.max(nanos, 0);
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/* Smallest duration of a bucket. */
+	private static long lowest(int bucket) {
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * Calls and sampled durations of every phase, for one thread at a time.
+	 */
+	private static class Recorder {
+		private final long[] calls = new long[PHASES.length];
+		private final long[][] histograms = new long[PHASES.length][BUCKETS];
+		private final long[] max = new long[PHASES.length];
+
+		Recorder() {
+			all.add(this);
+		}
+
+		/* Start a call of phase. Return the time to pass to stop,
+		 * or 0 if this call is not sampled. */
+		long start(int phase) {
+			if((++calls[phase] & (SAMPLE_EVERY - 1)) != 0)
+				return 0;
+			return System.nanoTime();
+		}
+
+		void stop(int phase, long start) {
+			if(start == 0)
+				return;
+			long nanos = System.nanoTime() - start;
+			histograms[phase][bucket(nanos)]++;
+			max[phase] = Math.max(max[phase], nanos);
+		}
+	}
+
+	/* Breakdown of the time of every phase, over every recorder. */
+	static String report() {
+		long[] calls = new long[PHASES.length];
+		long[][] histograms = new long[PHASES.length][BUCKETS];
+		long[] max = new long[PHASES.length];
+		for(Recorder r : all) {
+			for(int p = 0 ; p < PHASES.length ; p++) {
+				calls[p] += r.calls[p];
+				max[p] = Math.max(max[p], r.max[p]);
+				for(int b = 0 ; b < BUCKETS ; b++)
+					histograms[p][b] += r.histograms[p][b];
+			}
+		}
+
+		//Estimated total time of every phase: mean of the samples times the calls
+		double[] total = new double[PHASES.length];
+		double measured = 0;
+		for(int p = 0 ; p < PHASES.length ; p++) {
+			long samples = 0;
+			double sum = 0;
+			for(int b = 0 ; b < BUCKETS ; b++) {
+				samples += histograms[p][b];
+				sum += histograms[p][b] * (double) lowest(b);
+			}
+			total[p] = samples == 0 ? 0 : sum / samples * calls[p];
+			if(p == MOVES || p == MAKE_MOVE)
+				measured += total[p];
+		}
+
+		StringBuilder s = new StringBuilder();
+		s.append(String.format(Locale.ROOT, "%-52s %12s %7s %8s %8s %8s %10s%n",
+				"phase", "calls", "time", "p50 ns", "p90 ns", "p99 ns", "max ns"));
+		for(int p = 0 ; p < PHASES.length ; p++) {
+			s.append(String.format(Locale.ROOT, "%-52s %12d %6.1f%% %8d %8d %8d %10d%n",
+					PHASES[p], calls[p], 100 * total[p] / Math.max(measured, 1),
+					percentile(histograms[p], 0.5), percentile(histograms[p], 0.9),
+					percentile(histograms[p], 0.99), max[p]));
+		}
+		s.append(String.format(Locale.ROOT, "one call in %d timed, %.2f s estimated in total", SAMPLE_EVERY, measured / 1e9));
+		return s.toString();
+	}
+
+	private static long percentile(long[] histogram, double q) {
+		long samples = 0;
+		for(long n : histogram)
+			samples += n;
+		long rank = (long) Math.ceil(q * samples);
+		long seen = 0;
+		for(int b = 0 ; b < BUCKETS ; b++) {
+			seen += histogram[b];
+			if(seen >= rank && seen > 0)
+				return lowest(b);
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,204 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Recorded game: the seed of its piece sequence and the index, in
+ * State.legalMoves(), of every move that was made. Playing the moves again
+ * on a state with the same seeded pieces (PieceSource.Seeded) gives the same
+ * game, without the player that chose them.
+ *
+ * File format, big-endian:
+ *   "TRPL", a version byte,
+ *   the seed (8 bytes),
+ *   the number of moves, the rows cleared and, for verification, the Zobrist
+ *   hash of the final board (8 bytes),
+ *   the moves.
+ * Counts and moves are varints: 7 bits per byte, lowest bits first, with the
+ * high bit set on every byte but the last. A piece has at most 34 moves, so
+ * every move takes one byte, and a game of 10^6 pieces is a file of 1 MB.
+ *
+ * Usage: java Replay [-verify] file...
+ * re-simulates every file headless, and prints its rows, pieces and speed.
+ * With -verify, it also checks that the rows cleared and the final board are
+ * the recorded ones, and exits with status 1 if some replay does not match.
+ */
+public class Replay {
+	private static final int MAGIC = 0x5452504C; //"TRPL"
+	private static final int VERSION = 1;
+
+	long seed;
+	int rowsCleared;
+	long hash;
+	int numMoves;
+	byte[] moves;
+
+	/**
+	 * Records the moves of a game as they are made. One recorder can record
+	 * any number of games, one after the other, reusing its buffer.
+	 */
+	static class Recorder {
+		private long seed;
+		private byte[] moves = new byte[1 << 12];
+		private int length, numMoves;
+
+		/* Start recording a new game, whose pieces come from state. */
+		void start(State state) {
+			if(!(state.getPieceSource() instanceof PieceSource.Seeded))
+				throw new IllegalArgumentException("Only games with seeded pieces can be replayed");
+			seed = ((PieceSource.Seeded) state.getPieceSource()).getSeed();
+			length = 0;
+			numMoves = 0;
+		}
+
+		/* Record the move about to be made, by its index in legalMoves(). */
+		void move(int index) {
+			if(length + 5 > moves.length)
+				moves = Arrays.copyOf(moves, moves.length * 2);
+			length = putVarint(moves, length, index);
+			numMoves++;
+		}
+
+		/* The game recorded so far, which ends on state. */
+		Replay finish(State state) {
+			Replay r = new Replay();
+			r.seed = seed;
+			r.rowsCleared = state.getRowsCleared();
+			r.hash = state.getHash();
+			r.numMoves = numMoves;
+			r.moves = Arrays.copyOf(moves, length);
+			return r;
+		}
+	}
+
+	private static int putVarint(byte[] b, int i, int value) {
+		while((value & ~0x7F) != 0) {
+			b[i++] = (byte) (value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		b[i++] = (byte) value;
+		return i;
+	}
+
+	private static void writeVarint(OutputStream out, int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.write(value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		for(int shift = 0 ; shift < 35 ; shift += 7) {
+			int b = in.read();
+			if(b < 0)
+				throw new EOFException();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(seed);
+			writeVarint(out, numMoves);
+			writeVarint(out, rowsCleared);
+			out.writeLong(hash);
+			out.write(moves);
+		} finally {
+			out.close();
+		}
+	}
+
+	static Replay read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != MAGIC)
+				throw new IOException(file + " is not a replay");
+			int version = in.readUnsignedByte();
+			if(version != VERSION)
+				throw new IOException("Unsupported replay version " + version);
+			Replay r = new Replay();
+			r.seed = in.readLong();
+			r.numMoves = readVarint(in);
+			r.rowsCleared = readVarint(in);
+			r.hash = in.readLong();
+			ByteArrayOutputStream moves = new ByteArrayOutputStream((int) Math.min(file.length(), Integer.MAX_VALUE));
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while((n = in.read(buffer)) > 0)
+				moves.write(buffer, 0, n);
+			r.moves = moves.toByteArray();
+			return r;
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Play the moves again on state, from a new game with the recorded seed.
+	 * Return false if a move is not legal or missing. */
+	boolean simulate(State state) {
+		state.reset(new PieceSource.Seeded(seed));
+		int i = 0;
+		for(int m = 0 ; m < numMoves ; m++) {
+			if(i >= moves.length || state.hasLost())
+				return false;
+			int move = 0, shift = 0;
+			byte b;
+			do {
+				if(i >= moves.length)
+					return false;
+				b = moves[i++];
+				move |= (b & 0x7F) << shift;
+				shift += 7;
+			} while(b < 0);
+			if(move >= state.legalMoves().length)
+				return false;
+			state.makeMove(move);
+		}
+		return i == moves.length;
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean verify = false;
+		boolean ok = true;
+		State state = new State();
+		for(String arg : args) {
+			if(arg.equals("-verify")) {
+				verify = true;
+				continue;
+			}
+			Replay r = read(new File(arg));
+			long start = System.nanoTime();
+			boolean legal = r.simulate(state);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			String line = String.format(Locale.ROOT, "%s: seed %d, %d rows, %d pieces, %.3f s (%.0f pieces/s)",
+					arg, r.seed, state.getRowsCleared(), state.getTurnNumber(), seconds, state.getTurnNumber() / seconds);
+			if(verify) {
+				boolean same = legal && state.getRowsCleared() == r.rowsCleared && state.getHash() == r.hash;
+				line += same ? ", verified" : ", MISMATCH: recorded " + r.rowsCleared + " rows";
+				ok &= same;
+			}
+			System.out.println(line);
+		}
+		if(!ok)
+			System.exit(1);
+	}
+}
@@ -1,4 +1,5 @@
-import java.awt.Color;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 
 
@@ -23,19 +24,39 @@ public class State {
 	private int cleared = 0;
 	
 	//each square in the grid - int means empty - other values mean the turn it was placed
+	//this is only kept up to date for getField() and drawing - the game logic uses rows
 	private int[][] field = new int[ROWS][COLS];
+	//each row of the grid as a bitmask - bit c is set if column c is filled
+	protected int[] rows = new int[ROWS];
 	//top row+1 of each column
 	//0 means empty
 	private int[] top = new int[COLS];
+	//Zobrist hash of the board: the xor of zobrist[r*COLS+c] for every filled square
+	protected long hash;
 	
 	
 	//number of next piece
 	protected int nextPiece;
+	//where the next pieces come from
+	private PieceSource pieces;
 	
 	
 	
 	//all legal moves - first index is piece type - then a list of 2-length arrays
 	protected static int[][][] legalMoves = new int[N_PIECES][][];
+	//largest number of legal moves of a piece
+	public static final int MAX_MOVES;
+	
+	//bitmask of a row with every column filled
+	public static final int FULL_ROW = (1 << COLS) - 1;
+	
+	//random key of each square for the hash of the board - always the same keys
+	private static final long[] zobrist = new long[ROWS*COLS];
+	static {
+		SplittableRandom random = new SplittableRandom(0x5A0B1257L);
+		for(int i = 0; i < zobrist.length; i++)
+			zobrist[i] = random.nextLong();
+	}
 	
 	//indices for legalMoves
 	public static final int ORIENT = 0;
@@ -84,8 +105,29 @@ public class State {
 		{{2,2,1},{2,3}}
 	};
 	
-	//initialize legalMoves
-	{
+	/* Placement table. For every piece, orientation and slot, everything that
+	 * is needed to place the piece is stored in PLACEMENT_SIZE consecutive ints
+	 * of placements, starting at placement(piece, orient, slot):
+	 * width, height, column mask (the bits of the columns covered by the piece),
+	 * bottom and top of each column (as in pBottom and pTop), and the bits filled
+	 * in each row covered by the piece, from its bottom row up.
+	 * The placements of a piece are in the same order as its legalMoves. */
+	public static final int PLACE_WIDTH = 0;
+	public static final int PLACE_HEIGHT = 1;
+	public static final int PLACE_COLUMNS = 2;
+	public static final int PLACE_BOTTOM = 3;
+	public static final int PLACE_TOP = 7;
+	public static final int PLACE_ROWS = 11;
+	public static final int PLACEMENT_SIZE = 16;
+	
+	protected static int[] placements;
+	//index of the first placement of a piece in a given orientation: [piece*4+orient]
+	private static int[] firstPlacement = new int[N_PIECES*4];
+	
+	//initialize legalMoves and placements
+	static {
+		int total = 0;
+		int maxMoves = 0;
 		//for each piece type
 		for(int i = 0; i < N_PIECES; i++) {
 			//figure number of legal moves
@@ -99,6 +141,7 @@ public class State {
 			//for each orientation
 			n = 0;
 			for(int j = 0; j < pOrients[i]; j++) {
+				firstPlacement[i*4+j] = total+n;
 				//for each slot
 				for(int k = 0; k < COLS+1-pWidth[i][j];k++) {
 					legalMoves[i][n][ORIENT] = j;
@@ -106,10 +149,38 @@ public class State {
 					n++;
 				}
 			}
+			total += n;
+			maxMoves = Math.max(maxMoves, n);
 		}
+		MAX_MOVES = maxMoves;
+		
+		placements = new int[total*PLACEMENT_SIZE];
+		for(int i = 0; i < N_PIECES; i++) {
+			for(int j = 0; j < pOrients[i]; j++) {
+				for(int k = 0; k < COLS+1-pWidth[i][j];k++) {
+					int p = placement(i, j, k);
+					placements[p+PLACE_WIDTH] = pWidth[i][j];
+					placements[p+PLACE_HEIGHT] = pHeight[i][j];
+					placements[p+PLACE_COLUMNS] = ((1 << pWidth[i][j]) - 1) << k;
+					for(int c = 0; c < pWidth[i][j]; c++) {
+						placements[p+PLACE_BOTTOM+c] = pBottom[i][j][c];
+						placements[p+PLACE_TOP+c] = pTop[i][j][c];
+						for(int h = pBottom[i][j][c]; h < pTop[i][j][c]; h++)
+							placements[p+PLACE_ROWS+h] |= 1 << (k+c);
+					}
+				}
+			}
+		}
+	}
 	
+	//index in placements of the given piece, orientation and slot
+	public static int placement(int piece, int orient, int slot) {
+		return (firstPlacement[piece*4+orient]+slot)*PLACEMENT_SIZE;
 	}
 	
+	public static int[] getPlacements() {
+		return placements;
+	}
 	
 	public int[][] getField() {
 		return field;
@@ -118,6 +189,24 @@ public class State {
 	public int[] getTop() {
 		return top;
 	}
+	
+	//bit c of rows[r] is set if the square at row r, column c is filled
+	public int[] getRows() {
+		return rows;
+	}
+	
+	//two boards with the same squares filled have the same hash
+	public long getHash() {
+		return hash;
+	}
+	
+	//xor the keys of the squares of row r that are set in mask
+	private static long hashRow(int r, int mask) {
+		long h = 0;
+		for(; mask != 0; mask &= mask-1)
+			h ^= zobrist[r*COLS+Integer.numberOfTrailingZeros(mask)];
+		return h;
+	}
 
     public static int[] getpOrients() {
         return pOrients;
@@ -160,13 +249,43 @@ public class State {
 	
 	//constructor
 	public State() {
+		this(new PieceSource.Uniform());
+	}
+	
+	//constructor - the pieces are taken from the given source
+	public State(PieceSource pieces) {
+		this.pieces = pieces;
 		nextPiece = randomPiece();
 
 	}
 	
+	//start a new game on this state, reusing its arrays
+	public void reset() {
+		lost = false;
+		turn = 0;
+		cleared = 0;
+		for(int r = 0; r < ROWS; r++) {
+			Arrays.fill(field[r], 0);
+			rows[r] = 0;
+		}
+		Arrays.fill(top, 0);
+		hash = 0;
+		nextPiece = randomPiece();
+	}
+	
+	//start a new game on this state, with pieces from the given source
+	public void reset(PieceSource pieces) {
+		this.pieces = pieces;
+		reset();
+	}
+	
+	public PieceSource getPieceSource() {
+		return pieces;
+	}
+	
 	//random integer, returns 0-6
 	private int randomPiece() {
-		return (int)(Math.random()*N_PIECES);
+		return pieces.nextPiece();
 	}
 	
 
@@ -190,63 +309,72 @@ public class State {
 	//returns false if you lose - true otherwise
 	public boolean makeMove(int orient, int slot) {
 		turn++;
+		int p = placement(nextPiece, orient, slot);
+		int width = placements[p+PLACE_WIDTH];
+		int pieceHeight = placements[p+PLACE_HEIGHT];
 		//height if the first column makes contact
-		int height = top[slot]-pBottom[nextPiece][orient][0];
+		int height = top[slot]-placements[p+PLACE_BOTTOM];
 		//for each column beyond the first in the piece
-		for(int c = 1; c < pWidth[nextPiece][orient];c++) {
-			height = Math.max(height,top[slot+c]-pBottom[nextPiece][orient][c]);
+		for(int c = 1; c < width;c++) {
+			height = Math.max(height,top[slot+c]-placements[p+PLACE_BOTTOM+c]);
 		}
 		
 		//check if game ended
-		if(height+pHeight[nextPiece][orient] >= ROWS) {
+		if(height+pieceHeight >= ROWS) {
 			lost = true;
 			return false;
 		}
 
 		
-		//for each column in the piece - fill in the appropriate blocks
-		for(int i = 0; i < pWidth[nextPiece][orient]; i++) {
+		//fill in the rows covered by the piece
+		for(int i = 0; i < pieceHeight; i++) {
+			rows[height+i] |= placements[p+PLACE_ROWS+i];
+			hash ^= hashRow(height+i, placements[p+PLACE_ROWS+i]);
+		}
+		
+		//for each column in the piece - record the turn in the appropriate blocks
+		for(int i = 0; i < width; i++) {
 			
 			//from bottom to top of brick
-			for(int h = height+pBottom[nextPiece][orient][i]; h < height+pTop[nextPiece][orient][i]; h++) {
+			for(int h = height+placements[p+PLACE_BOTTOM+i]; h < height+placements[p+PLACE_TOP+i]; h++) {
 				field[h][i+slot] = turn;
 			}
 		}
 		
 		//adjust top
-		for(int c = 0; c < pWidth[nextPiece][orient]; c++) {
-			top[slot+c]=height+pTop[nextPiece][orient][c];
+		for(int c = 0; c < width; c++) {
+			top[slot+c]=height+placements[p+PLACE_TOP+c];
 		}
 		
 		int rowsCleared = 0;
 		
 		//check for full rows - starting at the top
-		for(int r = height+pHeight[nextPiece][orient]-1; r >= height; r--) {
-			//check all columns in the row
-			boolean full = true;
-			for(int c = 0; c < COLS; c++) {
-				if(field[r][c] == 0) {
-					full = false;
-					break;
-				}
-			}
+		for(int r = height+pieceHeight-1; r >= height; r--) {
 			//if the row was full - remove it and slide above stuff down
-			if(full) {
+			if(rows[r] == FULL_ROW) {
 				rowsCleared++;
 				cleared++;
-				//for each column
-				for(int c = 0; c < COLS; c++) {
-
-					//slide down all bricks
-					for(int i = r; i < top[c]; i++) {
-						field[i][c] = field[i+1][c];
-					}
-					//lower the top
-					top[c]--;
-					while(top[c]>=1 && field[top[c]-1][c]==0)	top[c]--;
-				}
+				System.arraycopy(rows, r+1, rows, r, ROWS-1-r);
+				rows[ROWS-1] = 0;
+				//reuse the removed row as the new empty row at the top
+				int[] removed = field[r];
+				System.arraycopy(field, r+1, field, r, ROWS-1-r);
+				Arrays.fill(removed, 0);
+				field[ROWS-1] = removed;
 			}
 		}
+		
+		//lower the top of each column past the removed rows and any gap below them
+		//the rows above moved, so the hash is computed again from the board
+		if(rowsCleared > 0) {
+			for(int c = 0; c < COLS; c++) {
+				top[c] -= rowsCleared;
+				while(top[c]>=1 && (rows[top[c]-1] & (1 << c))==0)	top[c]--;
+			}
+			hash = 0;
+			for(int r = 0; r < ROWS; r++)
+				hash ^= hashRow(r, rows[r]);
+		}
 	
 
 		//pick a new piece
@@ -277,7 +405,7 @@ public class State {
 		}
 		
 		for(int i = 0; i < COLS; i++) {
-			label.setPenColor(Color.red);
+			label.setPenColor(TLabel.RED);
 			label.line(i, top[i], i+1, top[i]);
 			label.setPenColor();
 		}
@@ -287,10 +415,8 @@ public class State {
 		
 	}
 	
-	public static final Color brickCol = Color.gray; 
-	
 	private void drawBrick(int c, int r) {
-		label.filledRectangleLL(c, r, 1, 1, brickCol);
+		label.filledRectangleLL(c, r, 1, 1, TLabel.BRICK_COLOR);
 		label.rectangleLL(c, r, 1, 1);
 	}
 	
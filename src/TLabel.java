@@ -52,6 +52,9 @@ public class TLabel{
 	// default colors
 	public static final Color DEFAULT_PEN_COLOR   = BLACK;
 	public static final Color DEFAULT_CLEAR_COLOR = WHITE;
+	// color of the bricks drawn by State - kept here rather than in State so
+	// that games can be played without loading any AWT class
+	public static final Color BRICK_COLOR = GRAY;
 
 	// current pen color
 	private static Color penColor;
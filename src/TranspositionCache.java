@@ -0,0 +1,128 @@
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the features of the boards tested by StateEx.testMove.
+ * The features of the board after a placement only depend on the board
+ * before it and on the placement, so they are stored under the Zobrist hash
+ * of the board (State.getHash) mixed with a key of the placement. They do
+ * not depend on the weights, so boards seen by one individual are reused by
+ * the others (with common random numbers, every individual starts its games
+ * on the same boards).
+ *
+ * A cache is not thread-safe: every thread has its own (see
+ * PlayerSkeleton.caches), and so does every state that moves between
+ * threads (see PlayerSkeleton.playGames). The cache is set-associative: a key can only be
+ * stored in the WAYS entries of its set, and when they are all used the
+ * entry to replace is chosen with the CLOCK algorithm (second chance): an
+ * entry that was read since the hand last passed it is skipped once.
+ * The keys of a set are next to each other in one array, so that looking up
+ * a key reads a single cache line, and the features of every entry are
+ * stored in full, width ints per entry, in another.
+ */
+class TranspositionCache {
+	private static final int WAYS = 4;
+
+	/* Flags of an entry: it holds a value, and it was read since the hand last passed it. */
+	private static final byte USED = 1, REFERENCED = 2;
+
+	/* Random key of every placement, in the order of State.getPlacements(). */
+	private static final long[] placementKeys = new long[State.getPlacements().length / State.PLACEMENT_SIZE];
+	static {
+		SplittableRandom random = new SplittableRandom(0x7A7CAC4EL);
+		for(int i = 0 ; i < placementKeys.length ; i++)
+			placementKeys[i] = random.nextLong();
+	}
+
+	/* Counters of all the caches, added to by flush, so that a cache can be
+	 * dropped without losing them. */
+	private static final AtomicLong totalHits = new AtomicLong();
+	private static final AtomicLong totalMisses = new AtomicLong();
+	private static final AtomicLong totalEvictions = new AtomicLong();
+
+	//key and flags of every entry
+	private final long[] keys;
+	private final byte[] flags;
+	//features of every entry: values[width*i] to values[width*i+width-1]
+	private final int[] values;
+	private final int width;
+	//position of the hand of every set
+	private final byte[] hands;
+	private final int sets;
+
+	/* Counters since the last flush, only written by the thread that uses the cache. */
+	private long hits, misses, evictions;
+
+	/**
+	 * @param capacity Maximum number of entries, rounded up to a power of 2.
+	 * @param width Number of features of every entry.
+	 */
+	TranspositionCache(int capacity, int width) {
+		sets = Integer.highestOneBit(Math.max(capacity / WAYS - 1, 1)) << 1;
+		this.width = width;
+		keys = new long[sets * WAYS];
+		flags = new byte[sets * WAYS];
+		values = new int[sets * WAYS * width];
+		hands = new byte[sets];
+	}
+
+	/* Key of the board with the given hash, after the placement at index p
+	 * of State.getPlacements(). */
+	static long key(long hash, int p) {
+		return hash ^ placementKeys[p / State.PLACEMENT_SIZE];
+	}
+
+	/* Copy the features stored under key to features, and return true,
+	 * or return false if the key is not in the cache. */
+	boolean get(long key, int[] features) {
+		int first = ((int) key & (sets - 1)) * WAYS;
+		for(int i = first ; i < first + WAYS ; i++) {
+			if(keys[i] == key && flags[i] != 0) {
+				flags[i] = USED | REFERENCED;
+				hits++;
+				System.arraycopy(values, i * width, features, 0, width);
+				return true;
+			}
+		}
+		misses++;
+		return false;
+	}
+
+	/* Store the features under key. */
+	void put(long key, int[] features) {
+		int set = (int) key & (sets - 1);
+		int first = set * WAYS;
+		while(true) {
+			int i = first + hands[set];
+			hands[set] = (byte) ((hands[set] + 1) % WAYS);
+			if((flags[i] & REFERENCED) == 0) {
+				if(flags[i] != 0)
+					evictions++;
+				keys[i] = key;
+				flags[i] = USED;
+				System.arraycopy(features, 0, values, i * width, width);
+				return;
+			}
+			flags[i] = USED;
+		}
+	}
+
+	/* Add the counters of this cache to the ones of statsThenReset, and clear them.
+	 * Called by the thread that uses the cache once a game is over, so that
+	 * looking up a key never writes to memory shared with other threads. */
+	void flush() {
+		totalHits.addAndGet(hits);
+		totalMisses.addAndGet(misses);
+		totalEvictions.addAndGet(evictions);
+		hits = misses = evictions = 0;
+	}
+
+	/* Hits, misses and evictions of all the caches since the last call (up
+	 * to their last flush), like LongAdder.sumThenReset. */
+	static String statsThenReset() {
+		long h = totalHits.getAndSet(0), m = totalMisses.getAndSet(0);
+		return String.format(Locale.ROOT, "cache: %d hits, %d misses (%.1f%% hit rate), %d evictions",
+				h, m, 100.0 * h / Math.max(h + m, 1), totalEvictions.getAndSet(0));
+	}
+}
@@ -0,0 +1,67 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads (Java 21), looked up by reflection so that the rest of the
+ * code still compiles and runs on older JDKs, where available() is false.
+ *
+ * A virtual thread costs a few hundred bytes until it runs, so there can be
+ * one per individual of a generation, even with 10^5 individuals. They are
+ * scheduled on a small pool of carrier threads, one per core, and are meant
+ * for code that mostly waits: the games themselves are bounded by a
+ * semaphore (see PlayerSkeleton.playGames), so that no more of them run at
+ * once than there are cores.
+ */
+class VirtualThreads {
+	//Factory of unnamed virtual threads, or null before Java 21
+	private static final ThreadFactory FACTORY = lookup();
+
+	private static ThreadFactory lookup() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch(ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	static boolean available() {
+		return FACTORY != null;
+	}
+
+	/* Virtual threads if they are available, daemon platform threads otherwise. */
+	static ThreadFactory factory(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = FACTORY != null ? FACTORY.newThread(r) : new Thread(r);
+				t.setName(name);
+				if(FACTORY == null)
+					t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/* Start r on a new virtual thread. */
+	static Thread start(Runnable r) {
+		Thread t = FACTORY.newThread(r);
+		t.start();
+		return t;
+	}
+
+	/* Executor that runs every task on a new virtual thread, or on
+	 * daemon platform threads before Java 21. */
+	static ExecutorService perTask() {
+		if(FACTORY != null) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch(ReflectiveOperationException e) {
+				//Fall through
+			}
+		}
+		return Executors.newCachedThreadPool(factory("executor"));
+	}
+}